@@ -1,3 +1,8 @@
 # Alarm Webmon
 #export ALARM_SERVER=localhost:9092
 #export ALARM_CONFIG=Accelerator
+#export ALARM_CHECKPOINT=/var/tmp/alarm-webmon
+#export ALARM_CAPTURE=/var/tmp/alarm-webmon
+#export ALARM_FAST_CATCHUP=true
+#export ALARM_HISTORY=100000
+#export ALARM_PV_HISTORY=10
@@ -0,0 +1,63 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+import java.io.ByteArrayOutputStream;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/** Benchmark of {@link AlarmPV} serialization
+ *  @author Kay Kasemir
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AlarmPVBenchmark
+{
+    private AlarmPV pv;
+    private ByteArrayOutputStream buf;
+    private JsonGenerator g;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        pv = new AlarmPV(AlarmPath.of(SyntheticAlarms.path(4711)));
+        pv.setDescription("Synthetic PV 4711");
+        pv.setAlarm(SeverityLevel.MAJOR, "HIGH_ALARM", SeverityLevel.MAJOR, "HIGH_ALARM", "4711.5",
+                    Instant.ofEpochSecond(1603123456, 4711));
+        buf = new ByteArrayOutputStream();
+        g = AlarmMonitor.json_factory.createGenerator(buf);
+        g.writeStartArray();
+    }
+
+    @Benchmark
+    public int serialize() throws Exception
+    {
+        pv.serialize(g);
+        g.flush();
+        final int size = buf.size();
+        buf.reset();
+        return size;
+    }
+}
@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmark of path handling
+ *
+ *  <p>Compares the {@link AlarmTreePath} string operations
+ *  with the interned {@link AlarmPath}.
+ *
+ *  @author Kay Kasemir
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class AlarmTreePathBenchmark
+{
+    private String path, parent, name;
+    private String[] elements;
+    private AlarmPath alarm_path;
+
+    @Setup
+    public void setup()
+    {
+        path = SyntheticAlarms.path(4711);
+        elements = AlarmTreePath.splitPath(path);
+        name = elements[elements.length-1];
+        parent = AlarmTreePath.makePath(elements, elements.length-1);
+        alarm_path = AlarmPath.of(path);
+    }
+
+    @Benchmark
+    public String[] splitPath()
+    {
+        return AlarmTreePath.splitPath(path);
+    }
+
+    @Benchmark
+    public String getName()
+    {
+        return AlarmTreePath.getName(path);
+    }
+
+    @Benchmark
+    public String makePath()
+    {
+        return AlarmTreePath.makePath(parent, name);
+    }
+
+    @Benchmark
+    public String makePathElements()
+    {
+        return AlarmTreePath.makePath(elements, elements.length);
+    }
+
+    @Benchmark
+    public AlarmPath alarmPathOf()
+    {
+        return AlarmPath.of(path);
+    }
+
+    @Benchmark
+    public String alarmPathToString()
+    {
+        return alarm_path.toString();
+    }
+}
@@ -0,0 +1,171 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/** Benchmark of the body returned by the <code>/alarms</code> servlet
+ *
+ *  <p><code>full</code> serializes all alarms, which the servlet does
+ *  once for each new state version.
+ *  <code>delta</code> serializes the changes of the last poll
+ *  for <code>/alarms?since=..</code>.
+ *  <code>top50</code> serializes the 50 most severe alarms
+ *  for <code>/alarms?limit=50</code>.
+ *  <code>fullSmile</code> and <code>fullCbor</code> serialize all alarms
+ *  in those binary formats,
+ *  <code>columns</code> and <code>columnsCbor</code> for <code>/alarms?layout=columnar</code>.
+ *
+ *  @author Kay Kasemir
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class AlarmsBodyBenchmark
+{
+    @Param({ "1000", "10000", "100000" })
+    public int alarms;
+
+    private AlarmMonitor monitor;
+    private long since;
+    private final AlarmQuery top50 = new AlarmQuery(null, null, null, AlarmQuery.Sort.SEVERITY, false, 0, 50);
+    private final JsonFactory smile_factory = new SmileFactory(), cbor_factory = new CBORFactory();
+    private ByteArrayOutputStream buf;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        monitor = SyntheticAlarms.createMonitor(alarms);
+        since = monitor.getVersion();
+        monitor.handleRecords(Arrays.asList(SyntheticAlarms.state(0, "MINOR"),
+                                            SyntheticAlarms.state(1, "OK"),
+                                            SyntheticAlarms.state(2, "MAJOR_ACK")));
+        buf = new ByteArrayOutputStream(alarms * 300);
+    }
+
+    @Benchmark
+    public int full() throws Exception
+    {
+        buf.reset();
+        try
+        (
+            final JsonGenerator g = AlarmMonitor.json_factory.createGenerator(buf);
+        )
+        {
+            monitor.serialize(g);
+        }
+        return buf.size();
+    }
+
+    @Benchmark
+    public int delta() throws Exception
+    {
+        buf.reset();
+        try
+        (
+            final JsonGenerator g = AlarmMonitor.json_factory.createGenerator(buf);
+        )
+        {
+            monitor.serializeChanges(since, g);
+        }
+        return buf.size();
+    }
+
+    @Benchmark
+    public int top50() throws Exception
+    {
+        buf.reset();
+        try
+        (
+            final JsonGenerator g = AlarmMonitor.json_factory.createGenerator(buf);
+        )
+        {
+            monitor.serialize(top50, g);
+        }
+        return buf.size();
+    }
+
+    @Benchmark
+    public int fullSmile() throws Exception
+    {
+        buf.reset();
+        try
+        (
+            final JsonGenerator g = smile_factory.createGenerator(buf, JsonEncoding.UTF8);
+        )
+        {
+            monitor.serialize(g);
+        }
+        return buf.size();
+    }
+
+    @Benchmark
+    public int fullCbor() throws Exception
+    {
+        buf.reset();
+        try
+        (
+            final JsonGenerator g = cbor_factory.createGenerator(buf, JsonEncoding.UTF8);
+        )
+        {
+            monitor.serialize(g);
+        }
+        return buf.size();
+    }
+
+    @Benchmark
+    public int columns() throws Exception
+    {
+        buf.reset();
+        try
+        (
+            final JsonGenerator g = AlarmMonitor.json_factory.createGenerator(buf);
+        )
+        {
+            monitor.serializeColumns(null, g);
+        }
+        return buf.size();
+    }
+
+    @Benchmark
+    public int columnsCbor() throws Exception
+    {
+        buf.reset();
+        try
+        (
+            final JsonGenerator g = cbor_factory.createGenerator(buf, JsonEncoding.UTF8);
+        )
+        {
+            monitor.serializeColumns(null, g);
+        }
+        return buf.size();
+    }
+}
@@ -0,0 +1,95 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Benchmark of the message handling
+ *
+ *  <p><code>replay</code> reads a 'config:' and 'state:' for each PV
+ *  into a new monitor, like reading the complete topic on startup.
+ *  <code>update</code> applies one poll of state updates to PVs
+ *  of an existing monitor, results are in records per second.
+ *
+ *  @author Kay Kasemir
+ */
+@State(Scope.Thread)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class HandleUpdateBenchmark
+{
+    @Param({ "1000", "10000", "100000" })
+    public int pvs;
+
+    private List<List<ConsumerRecord<byte[], byte[]>>> replay;
+
+    private AlarmMonitor monitor;
+
+    /** Polls of state updates, cycling through PVs and severities */
+    private List<List<ConsumerRecord<byte[], byte[]>>> updates;
+    private int next = 0;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        replay = SyntheticAlarms.replay(pvs);
+        monitor = SyntheticAlarms.createMonitor(pvs);
+
+        updates = new ArrayList<>();
+        long update = 0;
+        for (int i=0; i<100; ++i)
+        {
+            final List<ConsumerRecord<byte[], byte[]>> poll = new ArrayList<>();
+            for (int r=0; r<SyntheticAlarms.POLL_SIZE; ++r)
+            {
+                final int pv = (int) (update % pvs);
+                poll.add(SyntheticAlarms.state(pv, ++update / pvs));
+            }
+            updates.add(poll);
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public AlarmMonitor replay() throws Exception
+    {
+        final AlarmMonitor monitor = new AlarmMonitor("Accelerator");
+        for (List<ConsumerRecord<byte[], byte[]>> poll : replay)
+            monitor.handleRecords(poll);
+        return monitor;
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(SyntheticAlarms.POLL_SIZE)
+    public long update() throws Exception
+    {
+        monitor.handleRecords(updates.get(next));
+        next = (next + 1) % updates.size();
+        return monitor.getVersion();
+    }
+}
@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+
+/** Synthetic 'config:' and 'state:' records for benchmarks
+ *
+ *  <p>PVs are spread over 10 areas, 100 systems and 1000 subsystems
+ *  of the "Accelerator" configuration.
+ *
+ *  @author Kay Kasemir
+ */
+class SyntheticAlarms
+{
+    /** Records per poll, Kafka's default for 'max.poll.records' */
+    static final int POLL_SIZE = 500;
+
+    private static final String[] SEVERITIES = { "OK", "MINOR", "MAJOR", "MINOR_ACK", "MAJOR_ACK" };
+
+    /** @param pv PV index
+     *  @return Path to that PV
+     */
+    static String path(final int pv)
+    {
+        return "/Accelerator/Area" + (pv % 10) +
+               "/System" + (pv % 100) +
+               "/Subsystem" + (pv % 1000) +
+               "/SITE:PV:NAME_" + pv + ":Signal";
+    }
+
+    /** @param pv PV index
+     *  @return 'config:' record for that PV, similar in size to a real configuration
+     */
+    static ConsumerRecord<byte[], byte[]> config(final int pv)
+    {
+        return record(AlarmMonitor.CONFIG_PREFIX + path(pv),
+                      "{\"user\":\"ops\",\"host\":\"ics-srv01\",\"description\":\"Synthetic PV " + pv + "\"," +
+                      "\"delay\":10," +
+                      "\"guidance\":[{\"title\":\"Call\",\"details\":\"Call the system expert\"}]," +
+                      "\"displays\":[{\"title\":\"Display\",\"details\":\"/opi/system/Overview.bob\"}]}");
+    }
+
+    /** @param pv PV index
+     *  @param severity Severity, one of OK, MINOR, MAJOR, MINOR_ACK, MAJOR_ACK
+     *  @return 'state:' record for that PV
+     */
+    static ConsumerRecord<byte[], byte[]> state(final int pv, final String severity)
+    {
+        final String current = severity.replace("_ACK", "");
+        final String message = current.equals("OK") ? "OK" : "HIGH_ALARM";
+        return record(AlarmMonitor.STATE_PREFIX + path(pv),
+                      "{\"severity\":\"" + severity + "\",\"message\":\"" + message + "\",\"value\":\"" + pv + ".5\"," +
+                      "\"time\":{\"seconds\":1603123456,\"nano\":" + pv + "}," +
+                      "\"current_severity\":\"" + current + "\",\"current_message\":\"" + message + "\"}");
+    }
+
+    /** @param pv PV index
+     *  @param update Update counter
+     *  @return 'state:' record for that PV with a severity that changes with the update counter
+     */
+    static ConsumerRecord<byte[], byte[]> state(final int pv, final long update)
+    {
+        return state(pv, SEVERITIES[(int) ((pv + update) % SEVERITIES.length)]);
+    }
+
+    /** @param key Key
+     *  @param value Value
+     *  @return Record
+     */
+    static ConsumerRecord<byte[], byte[]> record(final String key, final String value)
+    {
+        return new ConsumerRecord<>("Accelerator", 0, 0,
+                                    key.getBytes(StandardCharsets.UTF_8),
+                                    value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** @param pvs Number of PVs
+     *  @return Polls with a 'config:' and an alarm 'state:' for each PV
+     */
+    static List<List<ConsumerRecord<byte[], byte[]>>> replay(final int pvs)
+    {
+        final List<ConsumerRecord<byte[], byte[]>> records = new ArrayList<>();
+        for (int pv=0; pv<pvs; ++pv)
+            records.add(config(pv));
+        for (int pv=0; pv<pvs; ++pv)
+            records.add(state(pv, pv % 2 == 0 ? "MAJOR" : "MINOR_ACK"));
+        final List<List<ConsumerRecord<byte[], byte[]>>> polls = new ArrayList<>();
+        for (int start=0; start<records.size(); start+=POLL_SIZE)
+            polls.add(records.subList(start, Math.min(start + POLL_SIZE, records.size())));
+        return polls;
+    }
+
+    /** @param pvs Number of PVs
+     *  @return Monitor with all PVs in alarm, half active, half acknowledged
+     *  @throws Exception on error
+     */
+    static AlarmMonitor createMonitor(final int pvs) throws Exception
+    {
+        final AlarmMonitor monitor = new AlarmMonitor("Accelerator");
+        for (List<ConsumerRecord<byte[], byte[]>> poll : replay(pvs))
+            monitor.handleRecords(poll);
+        return monitor;
+    }
+}
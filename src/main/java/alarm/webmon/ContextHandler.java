@@ -7,7 +7,15 @@
  ******************************************************************************/
 package alarm.webmon;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -20,7 +28,8 @@ import alarm.webmon.model.AlarmMonitor;
 
 /** Tomcat context handler
  *
- *  <p>Maintains the singleton {@link AlarmMonitor}
+ *  <p>Maintains one {@link AlarmMonitor} for each alarm configuration.
+ *  The first configuration is the default.
  *
  *  @author Kay Kasemir
  */
@@ -32,8 +41,14 @@ public class ContextHandler implements ServletContextListener
 
     public static final String ALARM_SERVER = "ALARM_SERVER";
     public static final String ALARM_CONFIG = "ALARM_CONFIG";
+    public static final String ALARM_CHECKPOINT = "ALARM_CHECKPOINT";
+    public static final String ALARM_CAPTURE = "ALARM_CAPTURE";
+    public static final String ALARM_FAST_CATCHUP = "ALARM_FAST_CATCHUP";
+    public static final String ALARM_HISTORY = "ALARM_HISTORY";
+    public static final String ALARM_PV_HISTORY = "ALARM_PV_HISTORY";
 
-    private static AlarmMonitor monitor;
+    /** Alarm monitors by configuration name, in the order of ALARM_CONFIG */
+    private static Map<String, AlarmMonitor> monitors = Collections.emptyMap();
 
     @Override
     public void contextInitialized(final ServletContextEvent ev)
@@ -44,22 +59,142 @@ public class ContextHandler implements ServletContextListener
         if (server == null)
             server = "localhost:9092";
 
+        // Comma-separated list of configurations
         String config = System.getenv(ALARM_CONFIG);
         if (config == null)
             config = "Accelerator";
+        final String[] configs = config.trim().split("\\s*,\\s*");
 
         logger.log(Level.INFO, "===========================================");
         logger.log(Level.INFO, "Alarm Webmon " + context.getContextPath() + " started");
         logger.log(Level.INFO, ALARM_SERVER + "=" + server);
         logger.log(Level.INFO, ALARM_CONFIG + "=" + config);
+
+        // Optional directory for checkpoints
+        final String checkpoint_dir = System.getenv(ALARM_CHECKPOINT);
+        logger.log(Level.INFO, ALARM_CHECKPOINT + "=" + checkpoint_dir);
+        createDirectory(ALARM_CHECKPOINT, checkpoint_dir);
+
+        // Optional directory for capturing received records
+        final String capture_dir = System.getenv(ALARM_CAPTURE);
+        if (capture_dir != null)
+            logger.log(Level.INFO, ALARM_CAPTURE + "=" + capture_dir);
+        createDirectory(ALARM_CAPTURE, capture_dir);
+
+        // Optionally defer alarm updates until caught up with the topic
+        final boolean fast_catchup = Boolean.parseBoolean(System.getenv(ALARM_FAST_CATCHUP));
+        if (fast_catchup)
+            logger.log(Level.INFO, ALARM_FAST_CATCHUP + "=true");
+
+        // Size of the state update history for all PVs and each PV
+        final int history = getSize(ALARM_HISTORY, AlarmMonitor.HISTORY_SIZE);
+        final int pv_history = getSize(ALARM_PV_HISTORY, 0);
+        logger.log(Level.INFO, ALARM_HISTORY + "=" + history + ", " + ALARM_PV_HISTORY + "=" + pv_history);
         logger.log(Level.INFO, "===========================================");
 
-        monitor = new AlarmMonitor(server, Arrays.asList(config));
+        // Each monitor has its own state and message handling thread
+        final Map<String, AlarmMonitor> created = new LinkedHashMap<>();
+        try
+        {
+            for (String name : configs)
+            {
+                if (name.isEmpty()  ||  created.containsKey(name))
+                    continue;
+                final File checkpoint = checkpoint_dir == null
+                                      ? null
+                                      : new File(checkpoint_dir, name + ".checkpoint");
+                final File capture = capture_dir == null
+                                   ? null
+                                   : new File(capture_dir, name + ".capture");
+                final AlarmMonitor monitor = new AlarmMonitor(server, Arrays.asList(name), checkpoint, capture);
+                // Add before starting, so it's closed if starting fails
+                created.put(name, monitor);
+                monitor.setFastCatchup(fast_catchup);
+                monitor.setHistorySize(history, pv_history);
+                monitor.start();
+            }
+        }
+        catch (RuntimeException | Error ex)
+        {
+            logger.log(Level.SEVERE, "Cannot start alarm monitors", ex);
+            // Stop threads and Kafka consumers of those already created
+            for (AlarmMonitor monitor : created.values())
+                monitor.close();
+            throw ex;
+        }
+        if (created.isEmpty())
+        {
+            logger.log(Level.SEVERE, ALARM_CONFIG + "='" + config + "' lists no configuration");
+            throw new IllegalStateException(ALARM_CONFIG + "='" + config + "' lists no configuration");
+        }
+        monitors = Collections.unmodifiableMap(created);
+    }
+
+    /** @param name Name of environment variable
+     *  @param dir Directory to create unless it exists, may be <code>null</code>
+     *  @throws IllegalStateException if directory cannot be created
+     */
+    private static void createDirectory(final String name, final String dir)
+    {
+        if (dir == null)
+            return;
+        try
+        {
+            Files.createDirectories(Paths.get(dir));
+        }
+        catch (IOException ex)
+        {
+            logger.log(Level.SEVERE, "Cannot create " + name + "=" + dir, ex);
+            throw new IllegalStateException("Cannot create " + name + "=" + dir, ex);
+        }
+    }
+
+    /** @param name Name of environment variable
+     *  @param default_value Value to use if not set or invalid
+     *  @return Size, 0 or more
+     */
+    private static int getSize(final String name, final int default_value)
+    {
+        final String text = System.getenv(name);
+        if (text == null)
+            return default_value;
+        try
+        {
+            return Math.max(0, Integer.parseInt(text.trim()));
+        }
+        catch (NumberFormatException ex)
+        {
+            logger.log(Level.WARNING, "Invalid " + name + "=" + text);
+            return default_value;
+        }
     }
 
+    /** @return {@link AlarmMonitor} for the default configuration */
     public static AlarmMonitor getAlarmMonitor()
     {
-        return monitor;
+        return monitors.values().iterator().next();
+    }
+
+    /** @param config Configuration name, <code>null</code> or empty for default
+     *  @return {@link AlarmMonitor} for that configuration, <code>null</code> if not known
+     */
+    public static AlarmMonitor getAlarmMonitor(final String config)
+    {
+        if (config == null  ||  config.isEmpty())
+            return getAlarmMonitor();
+        return monitors.get(config);
+    }
+
+    /** @return Names of all configurations, default first */
+    public static Collection<String> getConfigs()
+    {
+        return monitors.keySet();
+    }
+
+    /** @return All {@link AlarmMonitor}s, default first */
+    public static Collection<AlarmMonitor> getAlarmMonitors()
+    {
+        return monitors.values();
     }
 
     @Override
@@ -67,7 +202,8 @@ public class ContextHandler implements ServletContextListener
     {
         final ServletContext context = ev.getServletContext();
 
-        monitor.close();
+        for (AlarmMonitor monitor : monitors.values())
+            monitor.close();
         logger.log(Level.INFO, "===========================================");
         logger.log(Level.INFO, context.getContextPath() + " shut down");
         logger.log(Level.INFO, "===========================================");
@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/** Alarms in columns
+ *
+ *  <p>Instead of one object per PV, each list of alarms is written
+ *  as one array per field.
+ *  Severities are written as the ordinal of their {@link SeverityLevel},
+ *  paths, descriptions and messages as the index into a shared table
+ *  of strings, so repeated messages like "LOLO_ALARM" are only sent once.
+ *  Time stamps are epoch milliseconds.
+ *
+ *  @author Kay Kasemir
+ */
+class AlarmColumns
+{
+    /** Columns for one list of alarms */
+    class Table
+    {
+        private final String name;
+        private int count = 0;
+        private int[] path = new int[16],
+                      description = new int[16],
+                      severity = new int[16],
+                      message = new int[16],
+                      current_severity = new int[16],
+                      current_message = new int[16];
+        private String[] value = new String[16];
+        private long[] time = new long[16];
+        private boolean more = false;
+
+        private Table(final String name)
+        {
+            this.name = name;
+        }
+
+        /** @param more Do more alarms match beyond the ones in the table? */
+        void setMore(final boolean more)
+        {
+            this.more = more;
+        }
+
+        /** Add one alarm, only called by {@link AlarmPV}
+         *  @param path Path
+         *  @param description Description
+         *  @param severity Alarm severity
+         *  @param message Alarm message
+         *  @param current_severity Current severity of the PV
+         *  @param current_message Current message of the PV
+         *  @param value Value
+         *  @param time Time stamp, epoch milliseconds
+         */
+        void add(final String path, final String description,
+                 final SeverityLevel severity, final String message,
+                 final SeverityLevel current_severity, final String current_message,
+                 final String value, final long time)
+        {
+            if (count >= this.path.length)
+            {
+                final int size = count * 2;
+                this.path = Arrays.copyOf(this.path, size);
+                this.description = Arrays.copyOf(this.description, size);
+                this.severity = Arrays.copyOf(this.severity, size);
+                this.message = Arrays.copyOf(this.message, size);
+                this.current_severity = Arrays.copyOf(this.current_severity, size);
+                this.current_message = Arrays.copyOf(this.current_message, size);
+                this.value = Arrays.copyOf(this.value, size);
+                this.time = Arrays.copyOf(this.time, size);
+            }
+            this.path[count] = getIndex(path);
+            this.description[count] = getIndex(description);
+            this.severity[count] = severity.ordinal();
+            this.message[count] = getIndex(message);
+            this.current_severity[count] = current_severity.ordinal();
+            this.current_message[count] = getIndex(current_message);
+            this.value[count] = value;
+            this.time[count] = time;
+            ++count;
+        }
+
+        private void serialize(final JsonGenerator g) throws IOException
+        {
+            g.writeObjectFieldStart(name);
+            g.writeNumberField("count", count);
+            writeColumn(g, "path", path);
+            writeColumn(g, "description", description);
+            writeColumn(g, "severity", severity);
+            writeColumn(g, "message", message);
+            writeColumn(g, "current_severity", current_severity);
+            writeColumn(g, "current_message", current_message);
+            g.writeArrayFieldStart("value");
+            for (int i=0; i<count; ++i)
+                g.writeString(value[i]);
+            g.writeEndArray();
+            g.writeFieldName("time");
+            g.writeArray(time, 0, count);
+            g.writeEndObject();
+            if (more)
+                g.writeBooleanField(name + "_more", true);
+        }
+
+        private void writeColumn(final JsonGenerator g, final String field, final int[] values) throws IOException
+        {
+            g.writeFieldName(field);
+            g.writeArray(values, 0, count);
+        }
+    }
+
+    /** Index of each string in the table */
+    private final Map<String, Integer> index = new HashMap<>();
+
+    /** Table of strings */
+    private final List<String> strings = new ArrayList<>();
+
+    private final List<Table> tables = new ArrayList<>();
+
+    /** @param name Name of the list of alarms
+     *  @return Columns for that list
+     */
+    Table addTable(final String name)
+    {
+        final Table table = new Table(name);
+        tables.add(table);
+        return table;
+    }
+
+    /** @param text Text
+     *  @return Index of text in the table of strings
+     */
+    private int getIndex(final String text)
+    {
+        final Integer known = index.get(text);
+        if (known != null)
+            return known;
+        final int added = strings.size();
+        strings.add(text);
+        index.put(text, added);
+        return added;
+    }
+
+    /** Write the severity names, table of strings and columns of all lists
+     *  @param g {@link JsonGenerator}
+     *  @throws IOException on error
+     */
+    void serialize(final JsonGenerator g) throws IOException
+    {
+        g.writeArrayFieldStart("severities");
+        for (SeverityLevel severity : SeverityLevel.values())
+            g.writeString(severity.name());
+        g.writeEndArray();
+
+        g.writeArrayFieldStart("strings");
+        for (String text : strings)
+            g.writeString(text);
+        g.writeEndArray();
+
+        for (Table table : tables)
+            table.serialize(g);
+    }
+}
@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/** Bounded history of alarm state updates
+ *
+ *  <p>Ring buffer of path, severities, message and time
+ *  in arrays that are allocated once,
+ *  so memory stays fixed no matter how many updates are received.
+ *  Once full, the oldest entries are overwritten.
+ *
+ *  <p>Used for the global history of all PVs
+ *  as well as the short history of a single PV,
+ *  which doesn't need to keep the path.
+ *
+ *  <p>The message handler adds entries while clients read them.
+ *  Readers only hold the lock to copy a chunk of entries,
+ *  then filter the copy, so scanning a large history
+ *  for a rarely matching path doesn't block the message handler.
+ *  Entries that are overwritten while a reader scans the history
+ *  are skipped.
+ *
+ *  @author Kay Kasemir
+ */
+class AlarmHistory
+{
+    private static final SeverityLevel[] severities = SeverityLevel.values();
+
+    /** Paths, <code>null</code> for the history of one PV */
+    private final AlarmPath[] paths;
+    private final long[] times;
+    private final byte[] severity, current_severity;
+    private final String[] messages;
+
+    /** Number of entries copied while holding the lock */
+    private static final int CHUNK = 1024;
+
+    /** Number of entries ever added, next entry is written at <code>added % capacity</code> */
+    private long added = 0;
+
+    /** Entry read from the history */
+    private static class Event
+    {
+        final AlarmPath path;
+        final long time;
+        final SeverityLevel severity, current_severity;
+        final String message;
+
+        Event(final AlarmPath path, final long time,
+              final SeverityLevel severity, final SeverityLevel current_severity, final String message)
+        {
+            this.path = path;
+            this.time = time;
+            this.severity = severity;
+            this.current_severity = current_severity;
+            this.message = message;
+        }
+    }
+
+    /** @param capacity Number of updates to keep
+     *  @param keep_paths Keep the path of each update, or is this the history of just one PV?
+     */
+    AlarmHistory(final int capacity, final boolean keep_paths)
+    {
+        paths = keep_paths ? new AlarmPath[capacity] : null;
+        times = new long[capacity];
+        severity = new byte[capacity];
+        current_severity = new byte[capacity];
+        messages = new String[capacity];
+    }
+
+    /** @param path Path of the PV
+     *  @param severity Alarm severity
+     *  @param message Alarm message
+     *  @param current_severity Current severity of the PV
+     *  @param time Time of the update
+     */
+    synchronized void add(final AlarmPath path, final SeverityLevel severity, final String message,
+                          final SeverityLevel current_severity, final Instant time)
+    {
+        final int next = (int) (added % times.length);
+        if (paths != null)
+            paths[next] = path;
+        times[next] = time.toEpochMilli();
+        this.severity[next] = (byte) severity.ordinal();
+        this.current_severity[next] = (byte) current_severity.ordinal();
+        messages[next] = message;
+        ++added;
+    }
+
+    /** @param start Oldest time to include, epoch milliseconds
+     *  @param end Newest time to include, epoch milliseconds
+     *  @param path Path of PV for the history of one PV, otherwise prefix of paths to include
+     *  @param limit Maximum number of entries
+     *  @return Up to limit+1 matching entries, newest first
+     */
+    private List<Event> get(final long start, final long end, final AlarmPath path, final int limit)
+    {
+        final List<Event> result = new ArrayList<>();
+        final AlarmPath[] chunk_paths = paths == null ? null : new AlarmPath[CHUNK];
+        final long[] chunk_times = new long[CHUNK];
+        final byte[] chunk_severity = new byte[CHUNK], chunk_current_severity = new byte[CHUNK];
+        final String[] chunk_messages = new String[CHUNK];
+        // Number of the next entry to read, newest first
+        long entry;
+        synchronized (this)
+        {
+            entry = added - 1;
+        }
+        while (result.size() <= limit)
+        {
+            final int count;
+            synchronized (this)
+            {
+                // Entries before the oldest one have been overwritten
+                final long oldest = Math.max(0, added - times.length);
+                count = (int) Math.min(CHUNK, entry - oldest + 1);
+                for (int i=0; i<count; ++i)
+                {
+                    final int index = (int) ((entry - i) % times.length);
+                    if (paths != null)
+                        chunk_paths[i] = paths[index];
+                    chunk_times[i] = times[index];
+                    chunk_severity[i] = severity[index];
+                    chunk_current_severity[i] = current_severity[index];
+                    chunk_messages[i] = messages[index];
+                }
+            }
+            if (count <= 0)
+                break;
+            entry -= count;
+            for (int i=0; i<count  &&  result.size() <= limit; ++i)
+            {
+                final long time = chunk_times[i];
+                if (time < start  ||  time > end)
+                    continue;
+                final AlarmPath entry_path = paths == null ? path : chunk_paths[i];
+                if (! entry_path.startsWith(path))
+                    continue;
+                result.add(new Event(entry_path, time, severities[chunk_severity[i]], severities[chunk_current_severity[i]],
+                                     chunk_messages[i]));
+            }
+        }
+        return result;
+    }
+
+    /** Write matching entries
+     *
+     *  <p>Writes an "events" array, newest first.
+     *  When more entries match, also writes "more": true.
+     *
+     *  @param start Oldest time to include, epoch milliseconds
+     *  @param end Newest time to include, epoch milliseconds
+     *  @param path Path of PV for the history of one PV, otherwise prefix of paths to include
+     *  @param limit Maximum number of entries
+     *  @param g {@link JsonGenerator}
+     *  @throws IOException on error
+     */
+    void serialize(final long start, final long end, final AlarmPath path, final int limit,
+                   final JsonGenerator g) throws IOException
+    {
+        final List<Event> events = get(start, end, path, limit);
+        g.writeArrayFieldStart("events");
+        for (int i=0; i<events.size()  &&  i<limit; ++i)
+        {
+            final Event event = events.get(i);
+            g.writeStartObject();
+            g.writeStringField("path", event.path.toString());
+            g.writeStringField("severity", event.severity.name());
+            g.writeStringField("message", event.message);
+            g.writeStringField("current_severity", event.current_severity.name());
+            g.writeStringField("time", AlarmPV.MILLI_FORMAT.format(Instant.ofEpochMilli(event.time)));
+            g.writeEndObject();
+        }
+        g.writeEndArray();
+        if (events.size() > limit)
+            g.writeBooleanField("more", true);
+    }
+}
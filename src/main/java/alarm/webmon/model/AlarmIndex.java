@@ -0,0 +1,177 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentHashMap.KeySetView;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import alarm.webmon.model.AlarmQuery.Sort;
+
+/** Set of alarms with sorted indexes
+ *
+ *  <p>Queries for the most severe or most recent alarms
+ *  can then walk the alarms in order and stop
+ *  once they have what they need.
+ *
+ *  <p>The sort order depends on the severity and time of a PV,
+ *  so a PV must be removed from the indexes before these change
+ *  and added back afterwards, see {@link #beforeUpdate(AlarmPV, SeverityLevel, Instant)}
+ *  and {@link #afterUpdate(AlarmPV, int)}.
+ *  Modifications must only be made by one thread.
+ *  Readers may iterate concurrently.
+ *
+ *  @author Kay Kasemir
+ */
+class AlarmIndex implements Iterable<AlarmPV>
+{
+    private static final Comparator<AlarmPV> BY_NAME = (a, b) ->
+    {
+        final int c = a.getPath().getName().compareTo(b.getPath().getName());
+        if (c != 0  ||  a.getPath() == b.getPath())
+            return c;
+        // Same name in different areas
+        return a.getPath().toString().compareTo(b.getPath().toString());
+    };
+
+    private static final Comparator<AlarmPV> BY_TIME = (a, b) ->
+    {
+        final int c = b.getTimestamp().compareTo(a.getTimestamp());
+        return c != 0 ? c : BY_NAME.compare(a, b);
+    };
+
+    /** Most severe first, then by name, so only changes in severity re-order */
+    private static final Comparator<AlarmPV> BY_SEVERITY = (a, b) ->
+    {
+        final int c = Integer.compare(b.getSeverity().ordinal(), a.getSeverity().ordinal());
+        return c != 0 ? c : BY_NAME.compare(a, b);
+    };
+
+    /** Flags for indexes from which a PV was removed while it's updated */
+    private static final int SEVERITY_INDEX = 1, TIME_INDEX = 2;
+
+    private final KeySetView<AlarmPV, Boolean> pvs = ConcurrentHashMap.newKeySet();
+    private final ConcurrentSkipListSet<AlarmPV> by_severity = new ConcurrentSkipListSet<>(BY_SEVERITY);
+    private final ConcurrentSkipListSet<AlarmPV> by_time = new ConcurrentSkipListSet<>(BY_TIME);
+    private final ConcurrentSkipListSet<AlarmPV> by_name = new ConcurrentSkipListSet<>(BY_NAME);
+
+    /** @param pv PV to add
+     *  @return <code>true</code> if added, <code>false</code> if already in set
+     */
+    public boolean add(final AlarmPV pv)
+    {
+        if (! pvs.add(pv))
+            return false;
+        index(pv);
+        return true;
+    }
+
+    /** @param pv PV to remove
+     *  @return <code>true</code> if removed, <code>false</code> if it wasn't in set
+     */
+    public boolean remove(final AlarmPV pv)
+    {
+        if (! pvs.remove(pv))
+            return false;
+        unindex(pv);
+        return true;
+    }
+
+    /** @param pv PV
+     *  @return <code>true</code> if PV is in set
+     */
+    public boolean contains(final AlarmPV pv)
+    {
+        return pvs.contains(pv);
+    }
+
+    /** Call before severity or time of a PV change
+     *  @param pv PV that's about to change
+     *  @param severity New severity
+     *  @param timestamp New time stamp
+     *  @return Indexes that need to be updated, pass to {@link #afterUpdate(AlarmPV, int)}
+     */
+    public int beforeUpdate(final AlarmPV pv, final SeverityLevel severity, final Instant timestamp)
+    {
+        // Name index doesn't depend on severity and time
+        if (! pvs.contains(pv))
+            return 0;
+        int removed = 0;
+        if (pv.getSeverity() != severity)
+        {
+            by_severity.remove(pv);
+            removed |= SEVERITY_INDEX;
+        }
+        if (! pv.getTimestamp().equals(timestamp))
+        {
+            by_time.remove(pv);
+            removed |= TIME_INDEX;
+        }
+        return removed;
+    }
+
+    /** Call after severity or time of a PV changed
+     *  @param pv PV that changed
+     *  @param removed Result of {@link #beforeUpdate(AlarmPV, SeverityLevel, Instant)}
+     */
+    public void afterUpdate(final AlarmPV pv, final int removed)
+    {
+        if ((removed & SEVERITY_INDEX) != 0)
+            by_severity.add(pv);
+        if ((removed & TIME_INDEX) != 0)
+            by_time.add(pv);
+    }
+
+    private void index(final AlarmPV pv)
+    {
+        by_severity.add(pv);
+        by_time.add(pv);
+        by_name.add(pv);
+    }
+
+    private void unindex(final AlarmPV pv)
+    {
+        by_severity.remove(pv);
+        by_time.remove(pv);
+        by_name.remove(pv);
+    }
+
+    /** @return PVs in set */
+    public Set<AlarmPV> getPVs()
+    {
+        return pvs;
+    }
+
+    /** @param sort Sort order
+     *  @param reverse Reverse the order?
+     *  @return PVs in that order
+     */
+    public NavigableSet<AlarmPV> getSorted(final Sort sort, final boolean reverse)
+    {
+        final NavigableSet<AlarmPV> sorted;
+        if (sort == Sort.SEVERITY)
+            sorted = by_severity;
+        else if (sort == Sort.TIME)
+            sorted = by_time;
+        else
+            sorted = by_name;
+        return reverse ? sorted.descendingSet() : sorted;
+    }
+
+    /** Iterate over PVs in no particular order */
+    @Override
+    public Iterator<AlarmPV> iterator()
+    {
+        return pvs.iterator();
+    }
+}
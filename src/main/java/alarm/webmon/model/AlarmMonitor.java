@@ -9,19 +9,28 @@ package alarm.webmon.model;
 
 import static alarm.webmon.ContextHandler.logger;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.SecureRandom;
 import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentHashMap.KeySetView;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
@@ -31,10 +40,11 @@ import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
 import org.apache.kafka.common.serialization.Deserializer;
-import org.apache.kafka.common.serialization.StringDeserializer;
 
 import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
@@ -59,28 +69,222 @@ public class AlarmMonitor
     /** Path prefix for state updates */
     public static final String STATE_PREFIX = "state:";
 
-    private final Consumer<String, String> consumer;
+    /** Name of the monitored configuration */
+    private final String name;
+
+    private final Consumer<byte[], byte[]> consumer;
     private volatile boolean running = true;
     private final AtomicLong message_count = new AtomicLong();
 
+    /** Number of received messages that were replaced by a later one within the same poll */
+    private final AtomicLong coalesced_count = new AtomicLong();
+
+    /** Metrics of the message handling */
+    private final IngestMetrics metrics = new IngestMetrics();
+
+    /** Period for updating the consumer lag, nanoseconds */
+    private static final long LAG_PERIOD = Duration.ofSeconds(1).toNanos();
+
+    /** Count of created monitors, starting at a random value so that restarts differ as well */
+    private static final AtomicLong instances = new AtomicLong(new SecureRandom().nextInt() & 0xFFFFFFFFL);
+
+    /** Identifies this instance in snapshot entity tags, changes with each restart.
+     *  Unique even for monitors created within the same millisecond.
+     */
+    private final String instance = Long.toHexString(System.currentTimeMillis()) + "." +
+                                    Long.toHexString(instances.getAndIncrement());
+
+    /** State version, incremented after every change to the alarms */
+    private final AtomicLong version = new AtomicLong();
+
+    /** Number of removals to keep for clients that poll for changes */
+    static final int REMOVAL_LOG_SIZE = 10000;
+
+    /** PVs that left the active or acknowledged alarms */
+    private final RemovalLog removals = new RemovalLog(REMOVAL_LOG_SIZE);
+
+    /** Listeners to changes */
+    private final List<AlarmMonitorListener> listeners = new CopyOnWriteArrayList<>();
+
+    /** Lock for creating a new snapshot */
+    private final Object snapshot_lock = new Object();
+
+    /** Most recent snapshot, may be for an older version */
+    private volatile AlarmSnapshot snapshot = null;
+
     /** Marker for a PV that has been deleted */
-    private static final AlarmPV DELETED = new AlarmPV("null");
+    private static final AlarmPV DELETED = new AlarmPV(AlarmPath.root());
+
+    private final ConcurrentHashMap<AlarmPath, AlarmPV> config = new ConcurrentHashMap<>();
+    private final AlarmIndex active = new AlarmIndex();
+    private final AlarmIndex acknowledged = new AlarmIndex();
+
+    /** Default number of state updates in the history of all PVs */
+    public static final int HISTORY_SIZE = 100000;
+
+    /** History of all PVs, <code>null</code> if disabled */
+    private volatile AlarmHistory history = new AlarmHistory(HISTORY_SIZE, true);
+
+    /** Number of state updates in the history of each PV, 0 if disabled */
+    private volatile int pv_history_size = 0;
+
+    /** History of each PV */
+    private final ConcurrentHashMap<AlarmPath, AlarmHistory> pv_history = new ConcurrentHashMap<>();
+
+    /** Severity counts of all configured PVs */
+    private final AlarmTree tree = new AlarmTree();
+
+    /** Rolling statistics by severity and area */
+    private final AlarmStats stats = new AlarmStats();
+
+    /** Period for writing checkpoints */
+    private static final Duration CHECKPOINT_PERIOD = Duration.ofMinutes(1);
+
+    /** Older checkpoints are ignored.
+     *  Must be shorter than the 'delete.retention.ms' of the topic,
+     *  because older deletions may have been removed from the topic.
+     */
+    private static final Duration CHECKPOINT_MAX_AGE = Duration.ofHours(12);
+
+    /** Checkpoint file, <code>null</code> to always read from start of topic */
+    private final File checkpoint_file;
+
+    /** Checkpoint to restore on first partition assignment, only used by message handler */
+    private Checkpoint restore = null;
+
+    /** Time and state version of last checkpoint, only used by message handler */
+    private Instant checkpoint_time = Instant.now();
+    private long checkpoint_version = 0;
+
+    /** Decoder for received messages, only used by message handler */
+    private final UpdateDecoder decoder = new UpdateDecoder();
+
+    /** Batch of received messages, only used by message handler */
+    private final UpdateBatch batch = new UpdateBatch();
+
+    /** Severity of the last replaced update by path within the current batch, only used by message handler */
+    private final Map<AlarmPath, SeverityLevel> replaced_severity = new HashMap<>();
+
+    /** Capture of received records, <code>null</code> if not capturing, only used by message handler */
+    private RecordCapture.Writer capture = null;
+
+    /** Offsets where reading started and end offsets at the time of assignment,
+     *  only used by message handler
+     */
+    private Map<TopicPartition, Long> catchup_start = Collections.emptyMap(),
+                                      catchup_end = Collections.emptyMap();
+
+    /** Time when catching up started, nanoseconds, only used by message handler */
+    private long catchup_time = 0;
 
-    private final ConcurrentHashMap<String, AlarmPV> config = new ConcurrentHashMap<>();
-    private final KeySetView<AlarmPV,Boolean> active = ConcurrentHashMap.newKeySet();
-    private final KeySetView<AlarmPV,Boolean> acknowledged = ConcurrentHashMap.newKeySet();
+    /** Percentage of the records up to the end offsets that have been read, 100 when caught up */
+    private volatile int progress = 0;
+
+    /** Defer alarm and tree updates until caught up? */
+    private volatile boolean fast_catchup = false;
+
+    /** Are alarm and tree updates deferred for the current poll? Only used by message handler */
+    private boolean deferring = false;
 
     private final Thread thread;
 
     public AlarmMonitor(final String kafka_servers, final List<String> topics)
     {
-        consumer = createConsumer(kafka_servers, topics);
-        thread = new Thread(this::handleMessages, "Message Handler");
+        this(kafka_servers, topics, null);
+    }
+
+    /** @param kafka_servers Kafka servers
+     *  @param topics Topics to read
+     *  @param checkpoint_file Checkpoint file to restore on startup and update periodically,
+     *                         <code>null</code> to always read from start of topic
+     */
+    public AlarmMonitor(final String kafka_servers, final List<String> topics, final File checkpoint_file)
+    {
+        this(kafka_servers, topics, checkpoint_file, null);
+    }
+
+    /** @param kafka_servers Kafka servers
+     *  @param topics Topics to read
+     *  @param checkpoint_file Checkpoint file to restore on startup and update periodically,
+     *                         <code>null</code> to always read from start of topic
+     *  @param capture_file File where all received records are captured, <code>null</code> for none
+     */
+    public AlarmMonitor(final String kafka_servers, final List<String> topics, final File checkpoint_file,
+                        final File capture_file)
+    {
+        this(createConsumer(kafka_servers, topics), topics, checkpoint_file, capture_file);
+    }
+
+    /** @param consumer Consumer, for example a <code>MockConsumer</code> to replay captured records
+     *  @param topics Topics to read
+     *  @param checkpoint_file Checkpoint file to restore on startup and update periodically,
+     *                         <code>null</code> to always read from start of topic
+     *  @param capture_file File where all received records are captured, <code>null</code> for none
+     */
+    public AlarmMonitor(final Consumer<byte[], byte[]> consumer, final List<String> topics,
+                        final File checkpoint_file, final File capture_file)
+    {
+        this.name = String.join(",", topics);
+        this.checkpoint_file = checkpoint_file;
+        if (checkpoint_file != null  &&  checkpoint_file.canRead())
+        {
+            try
+            {
+                restore = Checkpoint.read(checkpoint_file);
+                logger.log(Level.INFO, "Checkpoint " + checkpoint_file + " from " + restore.time + " has " +
+                                       restore.pvs.size() + " PVs");
+            }
+            catch (Exception ex)
+            {
+                logger.log(Level.WARNING, "Cannot read checkpoint " + checkpoint_file, ex);
+            }
+        }
+        if (capture_file != null)
+        {
+            try
+            {
+                capture = new RecordCapture.Writer(capture_file);
+                logger.log(Level.INFO, "Capturing records in " + capture_file);
+            }
+            catch (Exception ex)
+            {
+                logger.log(Level.WARNING, "Cannot capture records in " + capture_file, ex);
+            }
+        }
+        this.consumer = consumer;
+        subscribe(topics);
+        thread = new Thread(this::handleMessages, "Message Handler " + name);
         thread.setDaemon(true);
-        thread.start();
     }
 
-    private Consumer<String, String> createConsumer(final String kafka_servers, final List<String> topics)
+    /** Start reading messages
+     *
+     *  <p>Settings like {@link #setFastCatchup(boolean)}
+     *  need to be configured before starting.
+     */
+    public void start()
+    {
+        if (thread != null)
+            thread.start();
+    }
+
+    /** Create monitor that is not connected to Kafka
+     *
+     *  <p>For tests and benchmarks which pass records
+     *  to {@link #handleRecords(Iterable)}.
+     *
+     *  @param name Name of the monitored configuration
+     */
+    AlarmMonitor(final String name)
+    {
+        this.name = name;
+        checkpoint_file = null;
+        consumer = null;
+        thread = null;
+        progress = 100;
+    }
+
+    private static Consumer<byte[], byte[]> createConsumer(final String kafka_servers, final List<String> topics)
     {
         final Properties props = new Properties();
         props.put("bootstrap.servers", kafka_servers);
@@ -93,16 +297,31 @@ public class AlarmMonitor
 
         logger.log(Level.FINE, () -> group_id + " subscribes to " + kafka_servers + " for " + topics);
 
-        // Read key, value as string
-        final Deserializer<String> deserializer = new StringDeserializer();
-        final Consumer<String, String> consumer = new KafkaConsumer<>(props, deserializer, deserializer);
+        // Read key, value as raw bytes.
+        // Only relevant records are then decoded.
+        final Deserializer<byte[]> deserializer = new ByteArrayDeserializer();
+        return new KafkaConsumer<>(props, deserializer, deserializer);
+    }
 
+    /** @param topics Topics to which the consumer subscribes */
+    private void subscribe(final List<String> topics)
+    {
         // Rewind whenever assigned to partition
         final ConsumerRebalanceListener crl = new ConsumerRebalanceListener()
         {
             @Override
             public void onPartitionsAssigned(final Collection<TopicPartition> parts)
             {
+                // On first assignment, try to continue from checkpoint
+                final Checkpoint checkpoint = restore;
+                restore = null;
+                final Map<TopicPartition, Long> end = consumer.endOffsets(parts);
+                if (checkpoint != null  &&  restoreCheckpoint(checkpoint, parts))
+                {
+                    startCatchUp(checkpoint.offsets, end);
+                    return;
+                }
+
                 // For 'configuration', start reading all messages.
                 // For 'commands', OK to just read commands from now on.
                 for (TopicPartition part : parts)
@@ -110,6 +329,7 @@ public class AlarmMonitor
                     consumer.seekToBeginning(Arrays.asList(part));
                     logger.info("Reading from start of '" + part.topic() + "'");
                 }
+                startCatchUp(consumer.beginningOffsets(parts), end);
             }
 
             @Override
@@ -119,41 +339,330 @@ public class AlarmMonitor
             }
         };
         consumer.subscribe(topics, crl);
-
-        return consumer;
     }
 
     private void handleMessages()
     {
         try
         {
+            long lag_time = System.nanoTime();
             while (running)
             {
                 logger.finer("checking for messages...");
-                final ConsumerRecords<String, String> records = consumer.poll(Duration.ofMillis(100));
-                for (ConsumerRecord<String, String> record : records)
-                    handleUpdate(record);
+                final long start = System.nanoTime();
+                final ConsumerRecords<byte[], byte[]> records = consumer.poll(Duration.ofMillis(100));
+                final long end = System.nanoTime();
+                metrics.poll_duration.observe(end - start);
+                if (end - lag_time > LAG_PERIOD)
+                {
+                    metrics.updateLag(consumer.metrics());
+                    lag_time = end;
+                }
+                if (capture != null)
+                    capture(records);
+                deferring = fast_catchup  &&  progress < 100;
+                handleRecords(records);
+                if (progress < 100)
+                    updateProgress();
+                if (checkpoint_file != null)
+                    checkpoint(false);
             }
+            if (checkpoint_file != null)
+                checkpoint(true);
         }
         catch (Exception ex)
         {
             logger.log(Level.SEVERE, "Message handling error", ex);
         }
+        if (capture != null)
+            stopCapture();
         logger.fine("Message handler done.");
     }
 
+    /** Start tracking the progress of reading up to the current end of the partitions
+     *  @param start Offsets where reading starts
+     *  @param end End offsets
+     */
+    private void startCatchUp(final Map<TopicPartition, Long> start, final Map<TopicPartition, Long> end)
+    {
+        catchup_start = new HashMap<>(start);
+        catchup_end = new HashMap<>(end);
+        catchup_time = System.nanoTime();
+        progress = 0;
+        // Progress is part of the serialized alarms, see getSnapshot()
+        changed();
+    }
+
+    /** Update progress of catching up, called after each poll until caught up */
+    private void updateProgress()
+    {
+        // Not assigned, yet
+        if (catchup_end.isEmpty())
+            return;
+        final Set<TopicPartition> assigned = consumer.assignment();
+        long total = 0, done = 0;
+        for (Map.Entry<TopicPartition, Long> entry : catchup_end.entrySet())
+        {
+            if (! assigned.contains(entry.getKey()))
+                continue;
+            final long start = catchup_start.getOrDefault(entry.getKey(), 0L);
+            final long end = entry.getValue();
+            final long position = consumer.position(entry.getKey());
+            total += Math.max(0, end - start);
+            done += Math.max(0, Math.min(position, end) - start);
+        }
+        if (done < total)
+        {
+            final int percent = (int) Math.min(99, done * 100 / total);
+            if (percent != progress)
+            {
+                progress = percent;
+                changed();
+            }
+            return;
+        }
+
+        final boolean deferred = deferring;
+        deferring = false;
+        progress = 100;
+        logger.log(Level.INFO, "Caught up with '" + name + "' in " +
+                               Duration.ofNanos(System.nanoTime() - catchup_time).toMillis() + " ms");
+        if (deferred)
+            finishCatchUp();
+        else
+            changed();
+    }
+
+    /** Perform the alarm and tree updates that were deferred while catching up */
+    private void finishCatchUp()
+    {
+        final long change = version.get() + 1;
+        // Remove alarms of PVs that were deleted or disabled while deferring
+        for (AlarmPV pv : active)
+            if (config.get(pv.getPath()) != pv  &&  active.remove(pv))
+                removals.add(change, pv.getPath());
+        for (AlarmPV pv : acknowledged)
+            if (config.get(pv.getPath()) != pv  &&  acknowledged.remove(pv))
+                removals.add(change, pv.getPath());
+        tree.clear();
+        stats.clearPVs();
+        for (AlarmPV pv : config.values())
+            if (pv != DELETED)
+            {
+                updateTree(pv.getPath(), null, pv.getSeverity(), false);
+                pv.setSequence(change);
+                updateAlarms(pv, change);
+            }
+        changed();
+    }
+
+    /** @param records Records to add to capture file */
+    private void capture(final ConsumerRecords<byte[], byte[]> records)
+    {
+        if (records.isEmpty())
+            return;
+        try
+        {
+            for (ConsumerRecord<byte[], byte[]> record : records)
+                capture.write(record);
+            capture.flush();
+        }
+        catch (Exception ex)
+        {
+            logger.log(Level.WARNING, "Cannot capture records", ex);
+            stopCapture();
+        }
+    }
+
+    private void stopCapture()
+    {
+        try
+        {
+            capture.close();
+        }
+        catch (Exception ex)
+        {
+            logger.log(Level.WARNING, "Cannot close capture", ex);
+        }
+        capture = null;
+    }
+
+    /** Handle records received in one poll
+     *  @param records Received records
+     *  @throws Exception on error
+     */
+    void handleRecords(final Iterable<ConsumerRecord<byte[], byte[]>> records) throws Exception
+    {
+        // While deferring, updates don't notify, so report progress once per poll
+        // Coalesce updates for the same PV, then apply what's left
+        int count = 0;
+        for (ConsumerRecord<byte[], byte[]> record : records)
+        {
+            batch.add(record.key(), record.value());
+            ++count;
+        }
+        for (UpdateBatch.Update update : batch.getUpdates())
+        {
+            if (update == null)
+                continue;
+            if (update.replaced)
+                handleReplaced(update);
+            else
+            {
+                final long start = System.nanoTime();
+                handleUpdate(update);
+                metrics.update_duration.observe(System.nanoTime() - start);
+            }
+        }
+        if (deferring  &&  count > 0)
+            changed();
+        message_count.addAndGet(count);
+        coalesced_count.addAndGet(batch.getCoalesced());
+        metrics.poll_records.observe(count);
+        batch.addCounts(metrics);
+        batch.clear();
+        replaced_severity.clear();
+    }
+
+    /** Restore state from checkpoint and continue reading at its offsets
+     *  @param checkpoint {@link Checkpoint}
+     *  @param parts Assigned partitions
+     *  @return <code>true</code> if restored, <code>false</code> if checkpoint is stale
+     */
+    private boolean restoreCheckpoint(final Checkpoint checkpoint, final Collection<TopicPartition> parts)
+    {
+        if (checkpoint.time.isBefore(Instant.now().minus(CHECKPOINT_MAX_AGE)))
+        {
+            logger.log(Level.INFO, "Ignoring checkpoint from " + checkpoint.time);
+            return false;
+        }
+        // Saved offsets must still be in the topic
+        final Map<TopicPartition, Long> start = consumer.beginningOffsets(parts);
+        final Map<TopicPartition, Long> end = consumer.endOffsets(parts);
+        for (TopicPartition part : parts)
+        {
+            final Long offset = checkpoint.offsets.get(part);
+            if (offset == null  ||  offset < start.get(part)  ||  offset > end.get(part))
+            {
+                logger.log(Level.INFO, "Ignoring checkpoint, offset " + offset + " for '" + part + "' is not in " +
+                                       start.get(part) + " .. " + end.get(part));
+                return false;
+            }
+        }
+
+        final long change = version.get() + 1;
+        for (AlarmPath path : checkpoint.deleted)
+            config.put(path, DELETED);
+        for (AlarmPV pv : checkpoint.pvs)
+        {
+            pv.setSequence(change);
+            config.put(pv.getPath(), pv);
+            updateTree(pv.getPath(), null, pv.getSeverity(), false);
+            if (pv.getSeverity().isActive())
+                active.add(pv);
+            else if (pv.getSeverity() != SeverityLevel.OK)
+                acknowledged.add(pv);
+        }
+        changed();
+
+        for (TopicPartition part : parts)
+        {
+            final long offset = checkpoint.offsets.get(part);
+            consumer.seek(part, offset);
+            logger.info("Reading '" + part.topic() + "' from checkpoint offset " + offset);
+        }
+        return true;
+    }
+
+    /** Write checkpoint if state changed and checkpoint period passed
+     *  @param force Write whenever state changed
+     */
+    private void checkpoint(final boolean force)
+    {
+        final Instant now = Instant.now();
+        final long current = version.get();
+        if (current == checkpoint_version  ||
+            (! force  &&  now.isBefore(checkpoint_time.plus(CHECKPOINT_PERIOD))))
+            return;
+        checkpoint_time = now;
+
+        // State and positions are only updated by this thread, so they match
+        final Map<TopicPartition, Long> offsets = new HashMap<>();
+        for (TopicPartition part : consumer.assignment())
+            offsets.put(part, consumer.position(part));
+        if (offsets.isEmpty())
+            return;
+        try
+        {
+            Checkpoint.write(checkpoint_file, offsets, config, DELETED);
+            checkpoint_version = current;
+            logger.log(Level.FINE, () -> "Wrote checkpoint " + checkpoint_file + " for " + offsets);
+        }
+        catch (Exception ex)
+        {
+            logger.log(Level.WARNING, "Cannot write checkpoint " + checkpoint_file, ex);
+        }
+    }
+
+    /** Handle 'state:' update that was replaced by a later one in the same poll
+     *
+     *  <p>The PV only needs the last update,
+     *  but the history and statistics include each update,
+     *  for example alarms that were raised and cleared within one poll.
+     *
+     *  @param update Replaced update
+     *  @throws Exception on error
+     */
+    private void handleReplaced(final UpdateBatch.Update update) throws Exception
+    {
+        final boolean live = ! deferring  &&  progress >= 100;
+        if (! live  &&  history == null  &&  pv_history_size <= 0)
+            return;
+        decoder.decodeState(update.value);
+        if (decoder.severity == null  ||  decoder.current_severity == null)
+            return;
+        final AlarmPV pv = config.get(update.path);
+        if (pv == DELETED)
+            return;
+        final SeverityLevel severity = SeverityLevel.valueOf(decoder.severity);
+        if (live)
+        {
+            SeverityLevel previous = replaced_severity.get(update.path);
+            if (previous == null  &&  pv != null)
+                previous = pv.getSeverity();
+            stats.raised(update.path, previous, severity);
+            replaced_severity.put(update.path, severity);
+        }
+        addHistory(update.path, severity, getMessage(decoder.message),
+                   SeverityLevel.valueOf(decoder.current_severity), getTimestamp());
+    }
+
+    /** @param message Decoded message, may be <code>null</code>
+     *  @return Message, "OK" if not set
+     */
+    private static String getMessage(final String message)
+    {
+        return message == null ? "OK" : message;
+    }
+
+    /** @return Time stamp of decoded 'state:' update, now if not set */
+    private Instant getTimestamp()
+    {
+        return decoder.has_time
+               ? Instant.ofEpochSecond(decoder.seconds, decoder.nano)
+               : Instant.now();
+    }
+
     /** Handle one state: or config: update
-     *  @param record Received record
+     *  @param update Received update
      *  @throws Exception on error
      */
-    private void handleUpdate(final ConsumerRecord<String, String> record) throws Exception
+    private void handleUpdate(final UpdateBatch.Update update) throws Exception
     {
-        message_count.incrementAndGet();
+        // State version for changes caused by this update
+        final long change = version.get() + 1;
 
-        final String path;
-        final JsonNode json = record.value() == null
-                            ? null
-                            : parseJsonText(record.value());
+        final AlarmPath path = update.path;
         // Ideally, we first get a 'config:' to define the item,
         // followed by 'state:' updates.
         // But the configuration can be modified (new guidance, ...) without a state change,
@@ -161,125 +670,251 @@ public class AlarmMonitor
         // unknown entry must be memorized.
         // Finally, there is a small chance that a 'config: .. null' entry to delete an item
         // is followed by just one more 'state' update, so remember deletions.
-        if (record.key().startsWith(CONFIG_PREFIX))
+        if (update.is_config)
         {
-            path = record.key().substring(CONFIG_PREFIX.length());
-            if (json == null)
+            if (update.value == null  ||  ! decoder.decodeConfig(update.value))
             {
-                config.put(path, DELETED);
-                active.removeIf(pv -> pv.getPath().equals(path));
-                acknowledged.removeIf(pv -> pv.getPath().equals(path));
+                final AlarmPV previous = config.put(path, DELETED);
+                if (previous != null  &&  previous != DELETED)
+                    remove(previous, change);
+                // Deleting an area or system removes all PVs below
+                removeSubtree(path, change);
+                if (! deferring)
+                    changed();
             }
             else
             {
                 // PV Configuration entries have a "description"
-                JsonNode jn = json.get("description");
-                if (jn == null)
+                final String desc = decoder.description;
+                if (desc == null)
                     return;
 
-                final String desc = jn.asText();
-
                 // "enabled":false
-                jn = json.get("enabled");
-                final boolean enabled = jn == null
-                                      ? true
-                                      : jn.asBoolean();
+                final boolean enabled = decoder.enabled;
 
                 config.compute(path, (p, v) ->
                 {
                     if (! enabled)
                     {   // Tread disabled similar to deleted
                         if (v != null  &&  v != DELETED)
-                        {
-                            active.remove(v);
-                            acknowledged.remove(v);
-                        }
+                            remove(v, change);
                         return DELETED;
                     }
                     // Restore explicitly deleted entry, create new entry
                     if (v == DELETED  ||  v == null)
+                    {
                         v = new AlarmPV(p);
+                        if (! deferring)
+                            updateTree(p, null, v.getSeverity(), false);
+                    }
                     v.setDescription(desc);
+                    v.setSequence(change);
                     return v;
                 });
+                if (! deferring)
+                    changed();
             }
         }
-        else if (record.key().startsWith(STATE_PREFIX))
+        else
         {
-            path = record.key().substring(STATE_PREFIX.length());
-            JsonNode jn = json == null ? null : json.get("severity");
-            if (jn != null)
+            decoder.decodeState(update.value);
+            if (decoder.severity != null)
             {
-                final SeverityLevel severity = SeverityLevel.valueOf(jn.asText());
+                final SeverityLevel severity = SeverityLevel.valueOf(decoder.severity);
 
                 // Ignore updates that are not about PVs
-                jn = json.get("current_severity");
-                if (jn == null)
+                if (decoder.current_severity == null)
                     return;
 
-                final SeverityLevel current_severity = SeverityLevel.valueOf(jn.asText());
+                final SeverityLevel current_severity = SeverityLevel.valueOf(decoder.current_severity);
 
-                jn = json.get("message");
-                final String message = jn == null
-                                     ? "OK"
-                                     : jn.asText();
+                final String message = getMessage(decoder.message);
 
-                jn = json.get("current_message");
-                final String current_message = jn == null
-                                             ? "OK"
-                                             : jn.asText();
+                final String current_message = getMessage(decoder.current_message);
 
-                jn = json.get("value");
-                final String value = jn == null
+                final String value = decoder.value == null
                                    ? ""
-                                   : jn.asText();
-
-                final Instant timestamp;
-                jn = json.get("time");
-                if (jn == null)
-                    timestamp = Instant.now();
-                else
-                {
-                    JsonNode sub = jn.get("seconds");
-                    final long sec = sub == null ? 0 : sub.asLong();
-
-                    sub = jn.get("nano");
-                    final int nano = sub == null ? 0 : sub.asInt();
+                                   : decoder.value;
 
-                    timestamp = Instant.ofEpochSecond(sec, nano);
-                }
+                final Instant timestamp = getTimestamp();
 
-                config.compute(path,  (p, v) ->
+                final AlarmPV pv = config.compute(path,  (p, v) ->
                 {
                     // Ignore state update of explicitly deleted entry
                     if (v == DELETED)
                         return DELETED;
+                    final SeverityLevel old_severity;
                     if (v == null)
-                        v = new AlarmPV(p);
-                    v.setAlarm(severity, message, current_severity, current_message, value, timestamp);
-                    if (severity.isActive())
                     {
-                        active.add(v);
-                        acknowledged.remove(v);
-                    }
-                    else if (severity != SeverityLevel.OK)
-                    {
-                        active.remove(v);
-                        acknowledged.add(v);
+                        v = new AlarmPV(p);
+                        old_severity = null;
                     }
                     else
+                        old_severity = v.getSeverity();
+                    // Sorted alarm indexes depend on severity and time
+                    final int active_index = active.beforeUpdate(v, severity, timestamp);
+                    final int acknowledged_index = acknowledged.beforeUpdate(v, severity, timestamp);
+                    v.setAlarm(severity, message, current_severity, current_message, value, timestamp);
+                    active.afterUpdate(v, active_index);
+                    acknowledged.afterUpdate(v, acknowledged_index);
+                    v.setSequence(change);
+                    if (! deferring)
                     {
-                        active.remove(v);
-                        acknowledged.remove(v);
+                        // Alarm may have been raised relative to replaced updates in this poll
+                        final SeverityLevel replaced = replaced_severity.remove(p);
+                        if (replaced == null)
+                            updateTree(p, old_severity, severity, progress >= 100);
+                        else
+                        {
+                            updateTree(p, old_severity, severity, false);
+                            if (progress >= 100)
+                                stats.raised(p, replaced, severity);
+                        }
+                        updateAlarms(v, change);
                     }
                     return v;
                 });
+                if (pv != DELETED)
+                    addHistory(path, severity, message, current_severity, timestamp);
+                if (! deferring)
+                    changed();
             }
         }
-        else
+    }
+
+    /** Update severity counts of tree and statistics
+     *  @param path Path of the PV
+     *  @param old_severity Previous severity, <code>null</code> for new PV
+     *  @param severity New severity, <code>null</code> for removed PV
+     *  @param live Count as raised alarm, or just restoring state while catching up?
+     */
+    private void updateTree(final AlarmPath path, final SeverityLevel old_severity, final SeverityLevel severity,
+                            final boolean live)
+    {
+        tree.update(path, old_severity, severity);
+        stats.update(path, old_severity, severity, live);
+    }
+
+    /** Add state update to the history of all PVs and of the PV
+     *  @param path Path of the PV
+     *  @param severity Alarm severity
+     *  @param message Alarm message
+     *  @param current_severity Current severity of the PV
+     *  @param timestamp Time of the update
+     */
+    private void addHistory(final AlarmPath path, final SeverityLevel severity, final String message,
+                            final SeverityLevel current_severity, final Instant timestamp)
+    {
+        final AlarmHistory all = history;
+        if (all != null)
+            all.add(path, severity, message, current_severity, timestamp);
+        final int size = pv_history_size;
+        if (size > 0)
+            pv_history.computeIfAbsent(path, p -> new AlarmHistory(size, false))
+                      .add(path, severity, message, current_severity, timestamp);
+    }
+
+    /** Add PV to active or acknowledged alarms, or remove it, based on its severity
+     *  @param pv PV that was updated
+     *  @param change State version of the update
+     */
+    private void updateAlarms(final AlarmPV pv, final long change)
+    {
+        final SeverityLevel severity = pv.getSeverity();
+        if (severity.isActive())
+        {
+            active.add(pv);
+            acknowledged.remove(pv);
+        }
+        else if (severity != SeverityLevel.OK)
+        {
+            active.remove(pv);
+            acknowledged.add(pv);
+        }
+        else if (active.remove(pv)  |  acknowledged.remove(pv))
+            removals.add(change, pv.getPath());
+    }
+
+    /** Remove PV from tree and alarms
+     *
+     *  <p>While deferring updates, nothing to do,
+     *  {@link #finishCatchUp()} will rebuild tree and alarms.
+     *
+     *  @param pv PV that was deleted or disabled
+     *  @param change State version of the removal
+     */
+    private void remove(final AlarmPV pv, final long change)
+    {
+        pv_history.remove(pv.getPath());
+        if (deferring)
             return;
+        updateTree(pv.getPath(), pv.getSeverity(), null, false);
+        if (active.remove(pv)  |  acknowledged.remove(pv))
+            removals.add(change, pv.getPath());
     }
 
+    /** Delete all PVs below a path
+     *
+     *  <p>The alarm server also sends a deletion for each item
+     *  of a removed sub tree, which will then find them already deleted.
+     *
+     *  @param path Path to deleted item
+     *  @param change State version of the removal
+     */
+    private void removeSubtree(final AlarmPath path, final long change)
+    {
+        final Deque<AlarmPath> todo = new ArrayDeque<>(path.getChildren());
+        while (! todo.isEmpty())
+        {
+            final AlarmPath item = todo.pop();
+            final AlarmPV previous = config.get(item);
+            if (previous != null  &&  previous != DELETED)
+            {
+                config.put(item, DELETED);
+                remove(previous, change);
+            }
+            todo.addAll(item.getChildren());
+        }
+    }
+
+    /** Update state version and notify listeners, called after every change */
+    private void changed()
+    {
+        final long current = version.incrementAndGet();
+        for (AlarmMonitorListener listener : listeners)
+        {
+            try
+            {
+                listener.alarmsChanged(current);
+            }
+            catch (Throwable ex)
+            {
+                logger.log(Level.WARNING, "Alarm monitor listener error", ex);
+            }
+        }
+    }
+
+    /** @param listener Listener to add */
+    public void addListener(final AlarmMonitorListener listener)
+    {
+        listeners.add(listener);
+    }
+
+    /** @param listener Listener to remove */
+    public void removeListener(final AlarmMonitorListener listener)
+    {
+        listeners.remove(listener);
+    }
+
+    /** Parse JSON into a tree
+     *
+     *  <p>Received messages are handled by the {@link UpdateDecoder}
+     *  which avoids creating the complete tree.
+     *
+     *  @param json_text JSON text
+     *  @return {@link JsonNode}
+     *  @throws Exception on error
+     */
     public JsonNode parseJsonText(final String json_text) throws Exception
     {
         try
@@ -291,27 +926,353 @@ public class AlarmMonitor
         }
     }
 
+    /** @return Name of the monitored configuration */
+    public String getName()
+    {
+        return name;
+    }
+
+    /** @return Identifier of this monitor instance, changes with each restart */
+    public String getInstance()
+    {
+        return instance;
+    }
+
+    /** @return State version, incremented after every change to the alarms */
+    public long getVersion()
+    {
+        return version.get();
+    }
+
+    /** @return Number of received messages */
+    public long getMessageCount()
+    {
+        return message_count.get();
+    }
+
+    /** @return Number of received messages that were skipped
+     *          because a later message within the same poll replaced them
+     */
+    public long getCoalescedCount()
+    {
+        return coalesced_count.get();
+    }
+
+    /** @return Metrics of the message handling */
+    public IngestMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    /** Call before {@link #start()}
+     *  @param fast_catchup Defer alarm and tree updates until caught up with the end of the topic?
+     */
+    public void setFastCatchup(final boolean fast_catchup)
+    {
+        this.fast_catchup = fast_catchup;
+    }
+
+    /** Call before {@link #start()}
+     *  @param size Number of state updates in the history of all PVs, 0 to disable
+     *  @param pv_size Number of state updates in the history of each PV, 0 to disable
+     */
+    public void setHistorySize(final int size, final int pv_size)
+    {
+        history = size > 0 ? new AlarmHistory(size, true) : null;
+        pv_history_size = pv_size;
+        pv_history.clear();
+    }
+
+    /** Write history of state updates
+     *
+     *  <p>For the path of a PV that has its own history, that is used,
+     *  otherwise the history of all PVs below the path.
+     *
+     *  @param start Oldest time to include, epoch milliseconds
+     *  @param end Newest time to include, epoch milliseconds
+     *  @param path Path of a PV or prefix, <code>null</code> for all
+     *  @param limit Maximum number of updates
+     *  @param g {@link JsonGenerator}
+     *  @throws IOException on error
+     */
+    public void serializeHistory(final long start, final long end, final String path, final int limit,
+                                 final JsonGenerator g) throws IOException
+    {
+        g.writeStartObject();
+        g.writeStringField("instance", instance);
+        final AlarmPath prefix = path == null ? AlarmPath.root() : AlarmPath.find(path);
+        AlarmHistory source = prefix == null ? null : pv_history.get(prefix);
+        if (source == null)
+            source = history;
+        if (source != null  &&  prefix != null)
+            source.serialize(start, end, prefix, limit, g);
+        else
+        {
+            g.writeArrayFieldStart("events");
+            g.writeEndArray();
+        }
+        g.writeEndObject();
+    }
+
+    /** Write rolling statistics
+     *
+     *  <p>Alarms raised per minute,
+     *  alarms raised and time spent in each severity by area,
+     *  and PVs raised most often.
+     *  Alarms are only counted as raised once caught up.
+     *
+     *  @param minutes Number of minutes to include, up to one hour
+     *  @param top Number of PVs raised most often to list
+     *  @param g {@link JsonGenerator}
+     *  @throws IOException on error
+     */
+    public void serializeStats(final int minutes, final int top, final JsonGenerator g) throws IOException
+    {
+        g.writeStartObject();
+        g.writeStringField("instance", instance);
+        stats.serialize(minutes, top, g);
+        g.writeEndObject();
+    }
+
+    /** @return Has the monitor read all records that existed when it was assigned to the topic? */
+    public boolean isReady()
+    {
+        return progress >= 100;
+    }
+
+    /** @return Percentage of the existing records read when assigned to the topic, 100 when caught up */
+    public int getProgress()
+    {
+        return progress;
+    }
+
+    /** @return Number of configured PVs, not counting deleted or disabled PVs */
+    public int getPVCount()
+    {
+        return tree.getTotal();
+    }
+
+    /** Get serialized alarms
+     *
+     *  <p>Snapshot is created once per state version
+     *  and then shared by all callers until the alarms
+     *  or the progress of catching up change.
+     *
+     *  @return {@link AlarmSnapshot} for the current state version
+     *  @throws IOException on error
+     */
+    public AlarmSnapshot getSnapshot() throws IOException
+    {
+        AlarmSnapshot result = snapshot;
+        if (result != null  &&  result.getVersion() == version.get())
+            return result;
+
+        synchronized (snapshot_lock)
+        {
+            // Version is read before walking the alarms and only incremented
+            // after a change, so the snapshot is never older than its version.
+            // Another caller may already have created it while we waited.
+            final long current = version.get();
+            result = snapshot;
+            if (result != null  &&  result.getVersion() == current)
+                return result;
+
+            final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            try
+            (
+                final JsonGenerator g = json_factory.createGenerator(buf);
+            )
+            {
+                serialize(current, g);
+            }
+            result = new AlarmSnapshot(instance, current, buf.toByteArray());
+            snapshot = result;
+        }
+        return result;
+    }
+
+    /** Write current active and acknowledged alarms
+     *  @param g {@link JsonGenerator}
+     *  @throws IOException on error
+     */
+    public void serialize(final JsonGenerator g) throws IOException
+    {
+        serialize(version.get(), g);
+    }
+
+    /** Write active and acknowledged alarms
+     *  @param version State version to include
+     *  @param g {@link JsonGenerator}
+     *  @throws IOException on error
+     */
+    private void serialize(final long version, final JsonGenerator g) throws IOException
+    {
+        g.writeStartObject();
+        g.writeStringField("instance", instance);
+        g.writeNumberField("version", version);
+        writeProgress(g);
+        {
+            g.writeArrayFieldStart("active");
+            for (AlarmPV pv : active)
+                pv.serialize(g);
+            g.writeEndArray();
+        }
+        {
+            g.writeArrayFieldStart("acknowledged");
+            for (AlarmPV pv : acknowledged)
+                pv.serialize(g);
+            g.writeEndArray();
+        }
+        g.writeEndObject();
+    }
+
+    /** Write a page of filtered and sorted alarms
+     *  @param query {@link AlarmQuery} for active and acknowledged alarms
+     *  @param g {@link JsonGenerator}
+     *  @throws IOException on error
+     */
+    public void serialize(final AlarmQuery query, final JsonGenerator g) throws IOException
+    {
+        g.writeStartObject();
+        g.writeStringField("instance", instance);
+        g.writeNumberField("version", version.get());
+        writeProgress(g);
+        query.serialize("active", active, g);
+        query.serialize("acknowledged", acknowledged, g);
+        g.writeEndObject();
+    }
+
+    /** Write active and acknowledged alarms in columns
+     *
+     *  <p>Writes the same information as {@link #serialize(JsonGenerator)}
+     *  except for the PV names, which are the last element of the path,
+     *  but severities as ordinals and texts as indices into a table of strings,
+     *  see {@link AlarmColumns}.
+     *
+     *  @param query {@link AlarmQuery} for active and acknowledged alarms, <code>null</code> for all
+     *  @param g {@link JsonGenerator}
+     *  @throws IOException on error
+     */
+    public void serializeColumns(final AlarmQuery query, final JsonGenerator g) throws IOException
+    {
+        final long current = version.get();
+        final AlarmColumns columns = new AlarmColumns();
+        addColumns(query, active, columns.addTable("active"));
+        addColumns(query, acknowledged, columns.addTable("acknowledged"));
+
+        g.writeStartObject();
+        g.writeStringField("instance", instance);
+        g.writeNumberField("version", current);
+        writeProgress(g);
+        columns.serialize(g);
+        g.writeEndObject();
+    }
+
+    /** @param query {@link AlarmQuery}, <code>null</code> for all alarms
+     *  @param alarms Alarms
+     *  @param table Columns to which matching alarms are added
+     */
+    private static void addColumns(final AlarmQuery query, final AlarmIndex alarms, final AlarmColumns.Table table)
+    {
+        if (query != null)
+            query.addTo(alarms, table);
+        else
+            for (AlarmPV pv : alarms)
+                pv.addTo(table);
+    }
+
+    /** Write "catching_up" percentage unless caught up
+     *  @param g {@link JsonGenerator}
+     *  @throws IOException on error
+     */
+    private void writeProgress(final JsonGenerator g) throws IOException
+    {
+        final int percent = progress;
+        if (percent < 100)
+            g.writeNumberField("catching_up", percent);
+    }
+
+    /** Write alarms that changed since a given state version
+     *
+     *  <p>Lists PVs that were added to or updated in the active
+     *  and acknowledged alarms, plus the paths of PVs
+     *  that have been removed from both.
+     *
+     *  @param since State version known to the client
+     *  @param g {@link JsonGenerator}
+     *  @return <code>false</code> if changes since that version are no longer known,
+     *          client needs to fetch all alarms. Nothing was written.
+     *  @throws IOException on error
+     */
+    public boolean serializeChanges(final long since, final JsonGenerator g) throws IOException
+    {
+        final long current = version.get();
+        final Set<AlarmPath> removed = new LinkedHashSet<>();
+        if (since > current  ||  ! removals.getRemovals(since, removed))
+            return false;
+
+        g.writeStartObject();
+        g.writeStringField("instance", instance);
+        g.writeNumberField("version", current);
+        g.writeBooleanField("delta", true);
+        writeProgress(g);
+        {
+            g.writeArrayFieldStart("active");
+            for (AlarmPV pv : active)
+                if (pv.getSequence() > since)
+                    pv.serialize(g);
+            g.writeEndArray();
+        }
+        {
+            g.writeArrayFieldStart("acknowledged");
+            for (AlarmPV pv : acknowledged)
+                if (pv.getSequence() > since)
+                    pv.serialize(g);
+            g.writeEndArray();
+        }
+        {
+            g.writeArrayFieldStart("removed");
+            for (AlarmPath path : removed)
+            {
+                // Skip PVs that have since returned into the alarms
+                final AlarmPV pv = config.get(path);
+                if (pv == null  ||  ! (active.contains(pv)  ||  acknowledged.contains(pv)))
+                    g.writeString(path.toString());
+            }
+            g.writeEndArray();
+        }
+        g.writeEndObject();
+        return true;
+    }
+
+    /** @return {@link AlarmTree} with severity counts */
+    public AlarmTree getTree()
+    {
+        return tree;
+    }
+
     public Set<AlarmPV> getActiveAlarms()
     {
-        return active;
+        return active.getPVs();
     }
 
     public Set<AlarmPV> getAchnowledgedAlarms()
     {
-        return acknowledged;
+        return acknowledged.getPVs();
     }
 
     public void dump()
     {
         System.out.println("\nMessage Count: " + message_count.get());
+        System.out.println("Coalesced: " + coalesced_count.get());
         System.out.println("\nCONFIG:");
-        final List<String> paths = new ArrayList<>();
-        Enumeration<String> keys = config.keys();
+        final List<AlarmPath> paths = new ArrayList<>();
+        Enumeration<AlarmPath> keys = config.keys();
         while (keys.hasMoreElements())
             paths.add(keys.nextElement());
-        Collections.sort(paths);
+        Collections.sort(paths, (a, b) -> a.toString().compareTo(b.toString()));
         int i = 0;
-        for (String path : paths)
+        for (AlarmPath path : paths)
             System.out.format("%4d %-120s %s\n", ++i, path, config.get(path));
 
         System.out.println("\nACTIVE:");
@@ -326,6 +1287,8 @@ public class AlarmMonitor
     public void close()
     {
         running = false;
+        if (thread == null)
+            return;
         try
         {
             thread.join(2000);
@@ -0,0 +1,23 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+/** Listener to an {@link AlarmMonitor}
+ *  @author Kay Kasemir
+ */
+public interface AlarmMonitorListener
+{
+    /** Invoked on the message handling thread after each change to the alarms.
+     *
+     *  <p>Must return quickly, for example only schedule
+     *  further processing.
+     *
+     *  @param version New state version of the monitor
+     */
+    public void alarmsChanged(long version);
+}
@@ -15,6 +15,11 @@ import java.time.format.DateTimeFormatter;
 import com.fasterxml.jackson.core.JsonGenerator;
 
 /** Information for PV node in the alarm tree
+ *
+ *  <p>The alarm state is an immutable {@link State}
+ *  that is replaced as a whole on each update,
+ *  so readers always see a consistent state.
+ *
  *  @author Kay Kasemir
  */
 public class AlarmPV
@@ -23,65 +28,156 @@ public class AlarmPV
     final private static String MILLI_PATTERN = "yyyy-MM-dd HH:mm:ss.SSS";
     final public static DateTimeFormatter MILLI_FORMAT= DateTimeFormatter.ofPattern(MILLI_PATTERN).withZone(zone);
 
+    /** Alarm state of the PV */
+    private static final class State
+    {
+        final String description;
+        final SeverityLevel severity, current_severity;
+        final String message, current_message;
+        final String value;
+        final Instant timestamp;
+
+        /** Formatted time stamp, created when first needed */
+        private String time;
+
+        State(final String description,
+              final SeverityLevel severity, final String message,
+              final SeverityLevel current_severity, final String current_message,
+              final String value, final Instant timestamp)
+        {
+            this.description = description;
+            this.severity = severity;
+            this.message = message;
+            this.current_severity = current_severity;
+            this.current_message = current_message;
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+
+        /** @return Formatted time stamp */
+        String getTime()
+        {
+            // Threads may race to format the time, but will all get the same, immutable string
+            String result = time;
+            if (result == null)
+            {
+                result = MILLI_FORMAT.format(timestamp);
+                time = result;
+            }
+            return result;
+        }
+    }
 
+    private final AlarmPath path;
 
-    private final String path;
-    private volatile String description;
-    private volatile SeverityLevel severity, current_severity;
-    private volatile String message, current_message;
-    private volatile String value;
-    private volatile Instant timestamp;
+    private volatile State state;
 
-    public AlarmPV(final String path)
+    /** State version of the most recent change */
+    private volatile long sequence = 0;
+
+    public AlarmPV(final AlarmPath path)
     {
         this.path = path;
-        this.description = AlarmTreePath.getName(path);
-        severity = current_severity = SeverityLevel.OK;
-        message = current_message = "OK";
-        value = "";
-        timestamp = Instant.now();
+        state = new State(path.getName(), SeverityLevel.OK, "OK", SeverityLevel.OK, "OK", "", Instant.now());
     }
 
-    public String getPath()
+    public AlarmPath getPath()
     {
         return path;
     }
 
+    /** @return State version of the most recent change */
+    public long getSequence()
+    {
+        return sequence;
+    }
+
+    /** @param sequence State version of the most recent change */
+    public void setSequence(final long sequence)
+    {
+        this.sequence = sequence;
+    }
+
+    public String getDescription()
+    {
+        return state.description;
+    }
+
+    /** Only called by the message handler, like {@link #setAlarm}
+     *  @param description Description
+     */
     public void setDescription(final String description)
     {
-        this.description = description;
+        final State old = state;
+        state = new State(description, old.severity, old.message, old.current_severity, old.current_message,
+                          old.value, old.timestamp);
+    }
+
+    public SeverityLevel getSeverity()
+    {
+        return state.severity;
+    }
+
+    public String getMessage()
+    {
+        return state.message;
+    }
+
+    public SeverityLevel getCurrentSeverity()
+    {
+        return state.current_severity;
+    }
+
+    public String getCurrentMessage()
+    {
+        return state.current_message;
+    }
+
+    public String getValue()
+    {
+        return state.value;
+    }
+
+    public Instant getTimestamp()
+    {
+        return state.timestamp;
     }
 
     public void setAlarm(final SeverityLevel severity, final String message,
                          final SeverityLevel current_severity, final String current_message,
                          final String value, final Instant timestamp)
     {
-        this.severity = severity;
-        this.message = message;
-        this.current_severity = current_severity;
-        this.current_message = current_message;
-        this.value = value;
-        this.timestamp = timestamp;
+        state = new State(state.description, severity, message, current_severity, current_message, value, timestamp);
     }
 
     public void serialize(final JsonGenerator g) throws IOException
     {
+        final State s = state;
         g.writeStartObject();
-        g.writeStringField("path", path);
-        g.writeStringField("name", AlarmTreePath.getName(path));
-        g.writeStringField("description", description);
-        g.writeStringField("severity", severity.name());
-        g.writeStringField("message", message);
-        g.writeStringField("current_severity", current_severity.name());
-        g.writeStringField("current_message", current_message);
-        g.writeStringField("value", value);
-        g.writeStringField("time", MILLI_FORMAT.format(timestamp));
+        g.writeStringField("path", path.toString());
+        g.writeStringField("name", path.getName());
+        g.writeStringField("description", s.description);
+        g.writeStringField("severity", s.severity.name());
+        g.writeStringField("message", s.message);
+        g.writeStringField("current_severity", s.current_severity.name());
+        g.writeStringField("current_message", s.current_message);
+        g.writeStringField("value", s.value);
+        g.writeStringField("time", s.getTime());
         g.writeEndObject();
     }
 
+    /** @param table Columns to which this alarm is added */
+    void addTo(final AlarmColumns.Table table)
+    {
+        final State s = state;
+        table.add(path.toString(), s.description, s.severity, s.message, s.current_severity, s.current_message,
+                  s.value, s.timestamp.toEpochMilli());
+    }
+
     @Override
     public String toString()
     {
-        return AlarmTreePath.getName(path) + " (" + description + "): " + severity + "/" + message;
+        final State s = state;
+        return path.getName() + " (" + s.description + "): " + s.severity + "/" + s.message;
     }
 }
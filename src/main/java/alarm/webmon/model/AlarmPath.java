@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Interned path to an element of the alarm tree
+ *
+ *  <p>Each element holds its name and a reference to the parent,
+ *  so PVs share the elements of common parent paths
+ *  instead of each holding the complete path.
+ *
+ *  <p>There is exactly one instance for each path,
+ *  so instances can be compared via "==".
+ *
+ *  <p>Elements are kept for the life of the JVM.
+ *  Removing them would allow another instance for the same path
+ *  while for example a checkpoint or removal log still holds the old one,
+ *  breaking the "==" comparison.
+ *  Paths that are deleted from the configuration thus stay in memory,
+ *  as does the deletion marker that the {@link AlarmMonitor} keeps for them,
+ *  so the size grows with all paths received since startup.
+ *  In practice that is the configuration plus the PVs that were
+ *  removed or renamed over time.
+ *  {@link #find(String)} does not add elements.
+ *
+ *  <p>The complete path is joined once when first requested
+ *  and then kept, so for example PVs that are serialized again and again
+ *  use the same string, at the cost of memory for that string.
+ *
+ *  @author Kay Kasemir
+ */
+public class AlarmPath
+{
+    private static final AlarmPath root = new AlarmPath(null, "");
+
+    private final AlarmPath parent;
+
+    /** Name of this element */
+    private final String name;
+
+    /** Name with path separators escaped */
+    private final String escaped;
+
+    /** Length of the complete path */
+    private final int length;
+
+    /** Complete path, computed when first needed */
+    private volatile String text = null;
+
+    /** Child elements by name, created when needed */
+    private volatile ConcurrentHashMap<String, AlarmPath> children = null;
+
+    private AlarmPath(final AlarmPath parent, final String name)
+    {
+        this.parent = parent;
+        this.name = name;
+        this.escaped = name.replace(AlarmTreePath.PATH_SEP, "\\/");
+        this.length = parent == null ? 0 : parent.length + 1 + escaped.length();
+    }
+
+    /** @return Root of the alarm tree, "/" */
+    public static AlarmPath root()
+    {
+        return root;
+    }
+
+    /** @param path Path like "/root/area/system/subsystem/pv_name"
+     *  @return {@link AlarmPath} for that path, created if necessary
+     */
+    public static AlarmPath of(final String path)
+    {
+        AlarmPath result = root;
+        for (String element : AlarmTreePath.splitPath(path))
+            result = result.getChild(element);
+        return result;
+    }
+
+    /** @param path Path like "/root/area/system/subsystem/pv_name"
+     *  @return {@link AlarmPath} for that path, <code>null</code> if it does not exist
+     */
+    public static AlarmPath find(final String path)
+    {
+        AlarmPath result = root;
+        for (String element : AlarmTreePath.splitPath(path))
+        {
+            final ConcurrentHashMap<String, AlarmPath> known = result.children;
+            result = known == null ? null : known.get(element);
+            if (result == null)
+                return null;
+        }
+        return result;
+    }
+
+    /** @param name Name of child element
+     *  @return {@link AlarmPath} for the child, created if necessary
+     */
+    public AlarmPath getChild(final String name)
+    {
+        ConcurrentHashMap<String, AlarmPath> known = children;
+        if (known == null)
+        {
+            synchronized (this)
+            {
+                known = children;
+                if (known == null)
+                    children = known = new ConcurrentHashMap<>(4);
+            }
+        }
+        final AlarmPath child = known.get(name);
+        if (child != null)
+            return child;
+        return known.computeIfAbsent(name, n -> new AlarmPath(this, n));
+    }
+
+    /** @return Child elements */
+    public Collection<AlarmPath> getChildren()
+    {
+        final ConcurrentHashMap<String, AlarmPath> known = children;
+        if (known == null)
+            return Collections.emptyList();
+        return known.values();
+    }
+
+    /** @return Parent element, <code>null</code> for root */
+    public AlarmPath getParent()
+    {
+        return parent;
+    }
+
+    /** @return Name of this element, i.e. last element of the path */
+    public String getName()
+    {
+        return name;
+    }
+
+    /** @param prefix Potential parent
+     *  @return <code>true</code> if this path is the prefix or below it
+     */
+    public boolean startsWith(final AlarmPath prefix)
+    {
+        for (AlarmPath element = this;  element != null;  element = element.parent)
+            if (element == prefix)
+                return true;
+        return false;
+    }
+
+    /** @return Complete path, "/" for root */
+    @Override
+    public String toString()
+    {
+        // Several threads may compute it the first time, all with the same result
+        String result = text;
+        if (result == null)
+            text = result = join();
+        return result;
+    }
+
+    /** @return Complete path, joined from the elements */
+    private String join()
+    {
+        if (parent == null)
+            return AlarmTreePath.PATH_SEP;
+        final char[] chars = new char[length];
+        int end = length;
+        for (AlarmPath element = this;  element.parent != null;  element = element.parent)
+        {
+            end -= element.escaped.length();
+            element.escaped.getChars(0, element.escaped.length(), chars, end);
+            chars[--end] = '/';
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,157 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/** Query for a filtered, sorted page of alarms
+ *
+ *  <p>Walks the alarms in the order of an {@link AlarmIndex}
+ *  and stops once the requested page is complete.
+ *
+ *  <p>The index may change while it is walked.
+ *  A PV that is updated meanwhile moves within the sort order,
+ *  so it can be met twice, which is ignored,
+ *  or be missed when it moves to an already visited position.
+ *  A page thus reflects the alarms around the time of the query,
+ *  not one exact state version.
+ *
+ *  @author Kay Kasemir
+ */
+public class AlarmQuery
+{
+    /** Sort orders */
+    public enum Sort
+    {
+        /** Most severe first, then by name */
+        SEVERITY,
+        /** Most recent first */
+        TIME,
+        /** By PV name */
+        NAME
+    }
+
+    private final String path;
+    private final SeverityLevel severity;
+    private final String text;
+    private final Sort sort;
+    private final boolean reverse;
+    private final int offset, limit;
+
+    /** @param path Path prefix, <code>null</code> for all
+     *  @param severity Minimum severity in the order of {@link SeverityLevel}, <code>null</code> for all
+     *  @param text Text to find in description or message, ignoring case, <code>null</code> for all
+     *  @param sort Sort order
+     *  @param reverse Reverse the sort order?
+     *  @param offset Number of matching alarms to skip
+     *  @param limit Maximum number of alarms to return
+     */
+    public AlarmQuery(final String path, final SeverityLevel severity, final String text,
+                      final Sort sort, final boolean reverse, final int offset, final int limit)
+    {
+        this.path = path;
+        this.severity = severity;
+        this.text = text == null  ||  text.isEmpty() ? null : text;
+        this.sort = sort;
+        this.reverse = reverse;
+        this.offset = offset;
+        this.limit = limit;
+    }
+
+    /** Write matching alarms
+     *
+     *  <p>Writes an array field with the requested page of alarms.
+     *  When more alarms match, also writes <code>{name}_more: true</code>.
+     *
+     *  @param name Name of the array field
+     *  @param alarms Alarms to query
+     *  @param g {@link JsonGenerator}
+     *  @throws IOException on error
+     */
+    void serialize(final String name, final AlarmIndex alarms, final JsonGenerator g) throws IOException
+    {
+        final List<AlarmPV> page = new ArrayList<>();
+        final boolean more = select(alarms, page);
+        g.writeArrayFieldStart(name);
+        for (AlarmPV pv : page)
+            pv.serialize(g);
+        g.writeEndArray();
+        if (more)
+            g.writeBooleanField(name + "_more", true);
+    }
+
+    /** Add matching alarms to columns
+     *
+     *  @param alarms Alarms to query
+     *  @param table Columns for the requested page of alarms
+     */
+    void addTo(final AlarmIndex alarms, final AlarmColumns.Table table)
+    {
+        final List<AlarmPV> page = new ArrayList<>();
+        table.setMore(select(alarms, page));
+        for (AlarmPV pv : page)
+            pv.addTo(table);
+    }
+
+    /** @param alarms Alarms to query
+     *  @param page Requested page of matching alarms
+     *  @return <code>true</code> if more alarms match beyond the page
+     */
+    private boolean select(final AlarmIndex alarms, final List<AlarmPV> page)
+    {
+        final AlarmPath prefix = path == null ? AlarmPath.root() : AlarmPath.find(path);
+        if (prefix == null)
+            return false;
+        // When sorted by decreasing severity, the remaining alarms
+        // are below the minimum severity once the first one is
+        final boolean by_severity = sort == Sort.SEVERITY  &&  ! reverse;
+        // Matching PVs so far, at most offset + limit + 1
+        final Set<AlarmPath> seen = new HashSet<>();
+        int matches = 0;
+        for (AlarmPV pv : alarms.getSorted(sort, reverse))
+        {
+            if (severity != null  &&  pv.getSeverity().ordinal() < severity.ordinal())
+            {
+                if (by_severity)
+                    break;
+                continue;
+            }
+            if (! pv.getPath().startsWith(prefix)  ||
+                ! (contains(pv.getDescription())  ||  contains(pv.getMessage())))
+                continue;
+            // Skip PV that moved within the index since it was met
+            if (! seen.add(pv.getPath()))
+                continue;
+            if (matches - offset >= limit)
+                return true;
+            if (matches++ >= offset)
+                page.add(pv);
+        }
+        return false;
+    }
+
+    /** @param value Description or message
+     *  @return <code>true</code> if value contains the text, or no text to match
+     */
+    private boolean contains(final String value)
+    {
+        if (text == null)
+            return true;
+        final int end = value.length() - text.length();
+        for (int i=0; i<=end; ++i)
+            if (value.regionMatches(true, i, text, 0, text.length()))
+                return true;
+        return false;
+    }
+}
@@ -0,0 +1,87 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.GZIPOutputStream;
+
+/** Serialized active and acknowledged alarms for one state version
+ *
+ *  <p>Built once per version by the {@link AlarmMonitor}
+ *  and then shared by all clients that request the alarms
+ *  while nothing changes.
+ *
+ *  @author Kay Kasemir
+ */
+public class AlarmSnapshot
+{
+    private final long version;
+    private final String etag;
+    private final byte[] json;
+
+    /** gzip-compressed JSON, created when first needed */
+    private volatile byte[] gzip = null;
+
+    /** @param instance Identifier of the monitor instance, changes with each restart
+     *  @param version State version of the monitor
+     *  @param json Serialized alarms
+     */
+    AlarmSnapshot(final String instance, final long version, final byte[] json)
+    {
+        this.version = version;
+        this.etag = "\"" + instance + "-" + version + "\"";
+        this.json = json;
+    }
+
+    /** @return State version of the monitor that this snapshot reflects */
+    public long getVersion()
+    {
+        return version;
+    }
+
+    /** @return HTTP entity tag, including quotes */
+    public String getETag()
+    {
+        return etag;
+    }
+
+    /** @return UTF-8 encoded JSON. Must not be modified! */
+    public byte[] getJson()
+    {
+        return json;
+    }
+
+    /** @return gzip-compressed UTF-8 encoded JSON. Must not be modified!
+     *  @throws IOException on error
+     */
+    public byte[] getGzip() throws IOException
+    {
+        byte[] result = gzip;
+        if (result == null)
+        {
+            synchronized (this)
+            {
+                result = gzip;
+                if (result == null)
+                {
+                    final ByteArrayOutputStream buf = new ByteArrayOutputStream(json.length / 4 + 64);
+                    try
+                    (
+                        final GZIPOutputStream out = new GZIPOutputStream(buf);
+                    )
+                    {
+                        out.write(json);
+                    }
+                    result = gzip = buf.toByteArray();
+                }
+            }
+        }
+        return result;
+    }
+}
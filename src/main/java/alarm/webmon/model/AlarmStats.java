@@ -0,0 +1,392 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/** Rolling alarm statistics
+ *
+ *  <p>Counts alarms raised and integrates the time that PVs spend
+ *  in each severity, by top-level area, in one minute buckets
+ *  for the last hour.
+ *  Tracks the PVs that are raised most often in each bucket
+ *  with a fixed number of counters ('space saving' algorithm),
+ *  so rarely raised PVs may be missed or over-counted,
+ *  but frequent ones are found.
+ *
+ *  <p>Alarms are counted from all state updates, including those
+ *  that a later update for the same PV replaced within one poll of the topic,
+ *  so PVs that chatter faster than the topic is polled are still found.
+ *
+ *  <p>All counters are primitive arrays that are allocated once.
+ *  Updates are synchronized.
+ *  Clients briefly hold the lock to copy the requested totals,
+ *  then write them without blocking updates.
+ *
+ *  @author Kay Kasemir
+ */
+class AlarmStats
+{
+    /** Number of buckets */
+    static final int BUCKETS = 60;
+
+    /** Duration of one bucket */
+    static final long BUCKET_MILLIS = 60 * 1000L;
+
+    /** Number of areas, further areas are counted as the last one */
+    static final int AREAS = 100;
+
+    /** Number of PVs tracked for each bucket as the ones raised most often */
+    static final int TOP = 32;
+
+    private static final SeverityLevel[] severities = SeverityLevel.values();
+    private static final int SEVERITIES = severities.length;
+
+    /** Index of each area */
+    private final Map<AlarmPath, Integer> area_index = new HashMap<>();
+
+    /** Path of each area, <code>null</code> for the 'other' area */
+    private final AlarmPath[] areas = new AlarmPath[AREAS];
+
+    /** Number of known areas */
+    private int area_count = 0;
+
+    /** Number of PVs by area and severity */
+    private final int[] pvs = new int[AREAS * SEVERITIES];
+
+    /** Time until which the time in severity has been added, by area */
+    private final long[] integrated = new long[AREAS];
+
+    /** Index of the current bucket */
+    private int current = 0;
+
+    /** Start of each bucket, epoch milliseconds */
+    private final long[] start = new long[BUCKETS];
+
+    /** Number of alarms raised by bucket, area and severity */
+    private final int[][] raised = new int[BUCKETS][AREAS * SEVERITIES];
+
+    /** Time spent in severity by bucket, area and severity, milliseconds */
+    private final long[][] millis = new long[BUCKETS][AREAS * SEVERITIES];
+
+    /** PVs raised most often by bucket */
+    private final AlarmPath[][] top_paths = new AlarmPath[BUCKETS][TOP];
+    private final int[][] top_counts = new int[BUCKETS][TOP];
+
+    AlarmStats()
+    {
+        final long now = System.currentTimeMillis();
+        start[current] = now - now % BUCKET_MILLIS;
+    }
+
+    /** Update statistics for a change in severity
+     *
+     *  @param path PV
+     *  @param old_severity Previous severity, <code>null</code> if PV is new
+     *  @param severity New severity, <code>null</code> if PV was removed
+     *  @param live Is this a new alarm, or is the state restored when starting up?
+     */
+    synchronized void update(final AlarmPath path, final SeverityLevel old_severity, final SeverityLevel severity,
+                             final boolean live)
+    {
+        final long now = System.currentTimeMillis();
+        advance(now);
+        final int area = getArea(path);
+        integrate(area, now);
+        if (old_severity != null)
+            --pvs[area * SEVERITIES + old_severity.ordinal()];
+        if (severity != null)
+            ++pvs[area * SEVERITIES + severity.ordinal()];
+        if (live  &&  severity != null)
+            countRaised(area, path, old_severity, severity);
+    }
+
+    /** Count alarm raised by a state update that doesn't change the PV,
+     *  because a later update within the same poll replaced it
+     *
+     *  @param path PV
+     *  @param previous Severity of the previous update, <code>null</code> if PV is new
+     *  @param severity Severity of the update
+     */
+    synchronized void raised(final AlarmPath path, final SeverityLevel previous, final SeverityLevel severity)
+    {
+        advance(System.currentTimeMillis());
+        countRaised(getArea(path), path, previous, severity);
+    }
+
+    /** @param area Area index
+     *  @param path PV
+     *  @param previous Previous severity, <code>null</code> if PV is new
+     *  @param severity New severity
+     */
+    private void countRaised(final int area, final AlarmPath path, final SeverityLevel previous, final SeverityLevel severity)
+    {
+        if (! severity.isActive()  ||  severity == previous)
+            return;
+        ++raised[current][area * SEVERITIES + severity.ordinal()];
+        countTop(path);
+    }
+
+    /** Forget the PVs in each severity, before they are all added again */
+    synchronized void clearPVs()
+    {
+        final long now = System.currentTimeMillis();
+        advance(now);
+        for (int area=0; area<area_count; ++area)
+            integrate(area, now);
+        for (int i=0; i<pvs.length; ++i)
+            pvs[i] = 0;
+    }
+
+    /** Move to the bucket for a time
+     *  @param now Current time, epoch milliseconds
+     */
+    private void advance(final long now)
+    {
+        while (now >= start[current] + BUCKET_MILLIS)
+        {
+            // Complete the time spent in each severity for the current bucket
+            final long end = start[current] + BUCKET_MILLIS;
+            for (int area=0; area<area_count; ++area)
+                integrate(area, end);
+            // After a long pause, skip empty buckets
+            final long next = now - end > BUCKETS * BUCKET_MILLIS
+                            ? now - now % BUCKET_MILLIS
+                            : end;
+            current = (current + 1) % BUCKETS;
+            start[current] = next;
+            for (int i=0; i<AREAS * SEVERITIES; ++i)
+            {
+                raised[current][i] = 0;
+                millis[current][i] = 0;
+            }
+            for (int i=0; i<TOP; ++i)
+            {
+                top_paths[current][i] = null;
+                top_counts[current][i] = 0;
+            }
+            for (int area=0; area<area_count; ++area)
+                integrated[area] = next;
+        }
+    }
+
+    /** Add the time spent in each severity since last call
+     *  @param area Area index
+     *  @param now Current time
+     */
+    private void integrate(final int area, final long now)
+    {
+        final long duration = now - integrated[area];
+        if (duration <= 0)
+            return;
+        final int base = area * SEVERITIES;
+        for (int s=0; s<SEVERITIES; ++s)
+            millis[current][base + s] += pvs[base + s] * duration;
+        integrated[area] = now;
+    }
+
+    /** @param path PV
+     *  @return Index of the top-level area that contains the PV
+     */
+    private int getArea(final AlarmPath path)
+    {
+        // Area is the element below the configuration root
+        AlarmPath area = path;
+        while (area.getParent() != null  &&
+               area.getParent().getParent() != null  &&
+               area.getParent().getParent().getParent() != null)
+            area = area.getParent();
+        final Integer index = area_index.get(area);
+        if (index != null)
+            return index;
+        final int added;
+        if (area_count < AREAS - 1)
+        {
+            added = area_count++;
+            areas[added] = area;
+            integrated[added] = System.currentTimeMillis();
+        }
+        else
+        {   // Use the last area for all others,
+            // keeping its integration time once it's in use
+            added = AREAS - 1;
+            if (area_count < AREAS)
+            {
+                area_count = AREAS;
+                integrated[added] = System.currentTimeMillis();
+            }
+        }
+        area_index.put(area, added);
+        return added;
+    }
+
+    /** @param path PV that was raised */
+    private void countTop(final AlarmPath path)
+    {
+        final AlarmPath[] paths = top_paths[current];
+        final int[] counts = top_counts[current];
+        int min = 0;
+        for (int i=0; i<TOP; ++i)
+        {
+            if (paths[i] == path)
+            {
+                ++counts[i];
+                return;
+            }
+            if (paths[i] == null)
+            {
+                paths[i] = path;
+                counts[i] = 1;
+                return;
+            }
+            if (counts[i] < counts[min])
+                min = i;
+        }
+        // Replace least frequent PV, assuming it was raised
+        // as often as the one that's replaced
+        paths[min] = path;
+        ++counts[min];
+    }
+
+    /** Totals copied from the counters */
+    private static class Snapshot
+    {
+        /** Start of each minute, epoch milliseconds, oldest first */
+        final List<Long> minute_start = new ArrayList<>();
+
+        /** Alarms raised in each minute by severity */
+        final List<int[]> minute_raised = new ArrayList<>();
+
+        /** Path of each area, <code>null</code> for the 'other' area */
+        AlarmPath[] areas;
+
+        /** Alarms raised by area and severity */
+        final int[] area_raised = new int[AREAS * SEVERITIES];
+
+        /** Time spent in severity by area and severity, milliseconds */
+        final long[] area_millis = new long[AREAS * SEVERITIES];
+
+        /** PVs raised most often, with count */
+        final Map<AlarmPath, Integer> chattering = new HashMap<>();
+    }
+
+    /** @param minutes Number of minutes to include, up to one hour
+     *  @return {@link Snapshot} of the totals for those minutes
+     */
+    private synchronized Snapshot snapshot(final int minutes)
+    {
+        final long now = System.currentTimeMillis();
+        final int count = Math.max(1, Math.min(minutes, BUCKETS));
+        final Snapshot snapshot = new Snapshot();
+        snapshot.areas = Arrays.copyOf(areas, area_count);
+        for (int b=count-1; b>=0; --b)
+        {
+            final int bucket = (current - b + BUCKETS) % BUCKETS;
+            // Skip buckets that are older than the window, or never used
+            if (start[bucket] <= now - (count + 1) * BUCKET_MILLIS  ||  start[bucket] == 0)
+                continue;
+            final int[] total = new int[SEVERITIES];
+            for (int area=0; area<area_count; ++area)
+                for (int s=0; s<SEVERITIES; ++s)
+                {
+                    final int i = area * SEVERITIES + s;
+                    total[s] += raised[bucket][i];
+                    snapshot.area_raised[i] += raised[bucket][i];
+                    snapshot.area_millis[i] += millis[bucket][i];
+                    if (bucket == current)
+                        snapshot.area_millis[i] += pvs[i] * Math.max(0, now - integrated[area]);
+                }
+            for (int i=0; i<TOP; ++i)
+                if (top_paths[bucket][i] != null)
+                    snapshot.chattering.merge(top_paths[bucket][i], top_counts[bucket][i], Integer::sum);
+            snapshot.minute_start.add(start[bucket]);
+            snapshot.minute_raised.add(total);
+        }
+        return snapshot;
+    }
+
+    /** Write statistics
+     *
+     *  @param minutes Number of minutes to include, up to one hour
+     *  @param top Number of PVs raised most often to list
+     *  @param g {@link JsonGenerator}
+     *  @throws IOException on error
+     */
+    void serialize(final int minutes, final int top, final JsonGenerator g) throws IOException
+    {
+        // Copy under the lock, write to the possibly slow client without it
+        final Snapshot snapshot = snapshot(minutes);
+
+        g.writeNumberField("bucket_seconds", BUCKET_MILLIS / 1000);
+        // Alarms raised per minute, oldest first
+        g.writeArrayFieldStart("minutes");
+        for (int m=0; m<snapshot.minute_start.size(); ++m)
+        {
+            g.writeStartObject();
+            g.writeStringField("start", AlarmPV.MILLI_FORMAT.format(Instant.ofEpochMilli(snapshot.minute_start.get(m))));
+            writeCounts(g, "raised", snapshot.minute_raised.get(m), 0);
+            g.writeEndObject();
+        }
+        g.writeEndArray();
+
+        // Totals for each area
+        g.writeArrayFieldStart("areas");
+        for (int area=0; area<snapshot.areas.length; ++area)
+        {
+            g.writeStartObject();
+            g.writeStringField("area", snapshot.areas[area] == null ? "other" : snapshot.areas[area].toString());
+            writeCounts(g, "raised", snapshot.area_raised, area * SEVERITIES);
+            g.writeObjectFieldStart("seconds");
+            for (int s=1; s<SEVERITIES; ++s)
+            {
+                final long ms = snapshot.area_millis[area * SEVERITIES + s];
+                if (ms > 0)
+                    g.writeNumberField(severities[s].name(), ms / 1000);
+            }
+            g.writeEndObject();
+            g.writeEndObject();
+        }
+        g.writeEndArray();
+
+        // PVs raised most often
+        final List<Map.Entry<AlarmPath, Integer>> sorted = new ArrayList<>(snapshot.chattering.entrySet());
+        sorted.sort((a, b) -> Integer.compare(b.getValue(), a.getValue()));
+        g.writeArrayFieldStart("chattering");
+        for (int i=0; i<sorted.size()  &&  i<top; ++i)
+        {
+            g.writeStartObject();
+            g.writeStringField("path", sorted.get(i).getKey().toString());
+            g.writeNumberField("raised", sorted.get(i).getValue());
+            g.writeEndObject();
+        }
+        g.writeEndArray();
+    }
+
+    /** @param g {@link JsonGenerator}
+     *  @param name Field name
+     *  @param counts Counts
+     *  @param base Index of the first severity in counts
+     *  @throws IOException on error
+     */
+    private static void writeCounts(final JsonGenerator g, final String name, final int[] counts, final int base) throws IOException
+    {
+        g.writeObjectFieldStart(name);
+        for (int s=0; s<SEVERITIES; ++s)
+            if (counts[base + s] > 0)
+                g.writeNumberField(severities[s].name(), counts[base + s]);
+        g.writeEndObject();
+    }
+}
@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/** Alarm tree with severity counts
+ *
+ *  <p>Each node of the tree counts the PVs below it
+ *  by {@link SeverityLevel}.
+ *  A PV update only adjusts the counts along its path.
+ *
+ *  @author Kay Kasemir
+ */
+public class AlarmTree
+{
+    private static final SeverityLevel[] severities = SeverityLevel.values();
+
+    /** Severity counts by path */
+    private final ConcurrentHashMap<AlarmPath, AtomicIntegerArray> counts = new ConcurrentHashMap<>();
+
+    /** @param counts Severity counts
+     *  @return Total number of PVs
+     */
+    private static int getTotal(final AtomicIntegerArray counts)
+    {
+        int total = 0;
+        for (int i=0; i<severities.length; ++i)
+            total += counts.get(i);
+        return total;
+    }
+
+    /** @param counts Severity counts
+     *  @return Highest severity
+     */
+    private static SeverityLevel getSeverity(final AtomicIntegerArray counts)
+    {
+        for (int i=severities.length-1; i>0; --i)
+            if (counts.get(i) > 0)
+                return severities[i];
+        return SeverityLevel.OK;
+    }
+
+    /** @return Total number of PVs in tree */
+    public int getTotal()
+    {
+        final AtomicIntegerArray root = counts.get(AlarmPath.root());
+        return root == null ? 0 : getTotal(root);
+    }
+
+    /** Remove all counts
+     *
+     *  <p>Must only be called by the thread that updates the counts.
+     */
+    void clear()
+    {
+        counts.clear();
+    }
+
+    /** Update counts for a PV
+     *
+     *  <p>Must only be called by one thread at a time.
+     *
+     *  @param path Path to PV
+     *  @param old_severity Previously counted severity, <code>null</code> if PV wasn't counted
+     *  @param severity New severity, <code>null</code> if PV was removed
+     */
+    void update(final AlarmPath path, final SeverityLevel old_severity, final SeverityLevel severity)
+    {
+        if (old_severity == severity)
+            return;
+        for (AlarmPath element = path;  element != null;  element = element.getParent())
+        {
+            final AtomicIntegerArray node = counts.computeIfAbsent(element, e -> new AtomicIntegerArray(severities.length));
+            if (old_severity != null)
+                node.decrementAndGet(old_severity.ordinal());
+            if (severity != null)
+                node.incrementAndGet(severity.ordinal());
+        }
+    }
+
+    /** @param path Path to node, "/" for root
+     *  @return <code>true</code> if tree contains that node
+     */
+    public boolean contains(final String path)
+    {
+        return getCounts(AlarmPath.find(path)) != null;
+    }
+
+    /** @param node Node, may be <code>null</code>
+     *  @return Counts of node, <code>null</code> if not in tree.
+     *          Root is always in tree, without counts until PVs are added.
+     */
+    private AtomicIntegerArray getCounts(final AlarmPath node)
+    {
+        if (node == null)
+            return null;
+        final AtomicIntegerArray node_counts = counts.get(node);
+        if (node_counts == null  &&  node == AlarmPath.root())
+            return new AtomicIntegerArray(severities.length);
+        return node_counts;
+    }
+
+    /** Write summary of a sub tree
+     *  @param path Path to node, "/" for root
+     *  @param depth How many levels of child nodes to include
+     *  @param g {@link JsonGenerator}
+     *  @return <code>false</code> if path is not in tree. Nothing was written.
+     *  @throws IOException on error
+     */
+    public boolean serialize(final String path, final int depth, final JsonGenerator g) throws IOException
+    {
+        final AlarmPath node = AlarmPath.find(path);
+        final AtomicIntegerArray node_counts = getCounts(node);
+        if (node_counts == null)
+            return false;
+        serialize(node, node_counts, depth, g);
+        return true;
+    }
+
+    private void serialize(final AlarmPath node, final AtomicIntegerArray node_counts, final int depth, final JsonGenerator g) throws IOException
+    {
+        g.writeStartObject();
+        g.writeStringField("path", node.toString());
+        g.writeStringField("name", node.getParent() == null ? AlarmTreePath.PATH_SEP : node.getName());
+        g.writeStringField("severity", getSeverity(node_counts).name());
+        g.writeObjectFieldStart("counts");
+        for (int i=0; i<severities.length; ++i)
+        {
+            final int count = node_counts.get(i);
+            if (count > 0)
+                g.writeNumberField(severities[i].name(), count);
+        }
+        g.writeEndObject();
+        if (depth > 0)
+        {
+            // Sort by name, skipping nodes without PVs.
+            // Keep the counts, nodes may be removed while writing.
+            final Map<AlarmPath, AtomicIntegerArray> children = new TreeMap<>((a, b) -> a.getName().compareTo(b.getName()));
+            for (AlarmPath child : node.getChildren())
+            {
+                final AtomicIntegerArray child_counts = counts.get(child);
+                if (child_counts != null  &&  getTotal(child_counts) > 0)
+                    children.put(child, child_counts);
+            }
+            if (! children.isEmpty())
+            {
+                g.writeArrayFieldStart("children");
+                for (Map.Entry<AlarmPath, AtomicIntegerArray> child : children.entrySet())
+                    serialize(child.getKey(), child.getValue(), depth-1, g);
+                g.writeEndArray();
+            }
+        }
+        g.writeEndObject();
+    }
+}
@@ -82,18 +82,24 @@ public class AlarmTreePath
     public static String[] splitPath(final String path)
     {
         // Split on '/', but only those that are NOT preceded by '\'.
-        // '(?<!x)' means 'not preceded by x',
-        // and in this case the x=\ must be escaped twice:
-        // Once to get into the Java string, once more to pass to the regex.
+        // Same as path.split("(?<!\\\\)/+"), but without regular expression.
         // Also skip the initial '/'
         final List<String> items = new ArrayList<>();
-        for (String item : path.split("(?<!\\\\)/+"))
+        final int N = path.length();
+        int start = 0;
+        for (int i=0; i<=N; ++i)
         {
-            // Skip empty items
-            if (item.isEmpty())
+            if (i < N  &&
+                (path.charAt(i) != '/'  ||  (i > 0  &&  path.charAt(i-1) == '\\')))
                 continue;
-            // Un-escape any PATH_SEP that's inside each item
-            items.add(item.replace("\\/", PATH_SEP));
+            // Skip empty items
+            if (i > start)
+            {
+                final String item = path.substring(start, i);
+                // Un-escape any PATH_SEP that's inside each item
+                items.add(item.indexOf('\\') < 0 ? item : item.replace("\\/", PATH_SEP));
+            }
+            start = i+1;
         }
         return items.toArray(new String[items.size()]);
     }
@@ -0,0 +1,230 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.kafka.common.TopicPartition;
+
+/** Checkpoint of the alarm configuration and the consumed offsets
+ *
+ *  <p>Allows a restarted {@link AlarmMonitor} to continue
+ *  from the saved offsets instead of reading the complete topic.
+ *
+ *  <p>Binary format:
+ *  <pre>
+ *  int   MAGIC, FORMAT
+ *  long  Time when written, epoch milliseconds
+ *  int   Number of partitions, each with
+ *        string topic, int partition, long offset
+ *  int   Number of entries, each with
+ *        string path, byte DELETED or PV, for PV followed by
+ *        string description,
+ *        byte severity ordinal, string message,
+ *        byte current severity ordinal, string current message,
+ *        string value, long seconds, int nanoseconds
+ *  long  CRC32 of everything before
+ *  </pre>
+ *  Strings are written as int length and UTF-8 bytes.
+ *
+ *  @author Kay Kasemir
+ */
+class Checkpoint
+{
+    private static final int MAGIC = 0x41574350; // "AWCP"
+    private static final int FORMAT = 1;
+    private static final byte DELETED = 0, PV = 1;
+
+    private static final SeverityLevel[] severities = SeverityLevel.values();
+
+    /** Time when checkpoint was written */
+    final Instant time;
+
+    /** Offset of next record to read for each partition */
+    final Map<TopicPartition, Long> offsets;
+
+    /** PVs in the configuration */
+    final List<AlarmPV> pvs;
+
+    /** Paths that have been deleted or disabled */
+    final List<AlarmPath> deleted;
+
+    private Checkpoint(final Instant time, final Map<TopicPartition, Long> offsets,
+                       final List<AlarmPV> pvs, final List<AlarmPath> deleted)
+    {
+        this.time = time;
+        this.offsets = offsets;
+        this.pvs = pvs;
+        this.deleted = deleted;
+    }
+
+    /** Write checkpoint
+     *
+     *  <p>Writes to a temporary file which then replaces
+     *  the checkpoint file, so an existing checkpoint
+     *  is never left incomplete.
+     *
+     *  @param file Checkpoint file
+     *  @param offsets Offset of next record to read for each partition
+     *  @param config Configuration
+     *  @param deleted Marker used in configuration for deleted or disabled paths
+     *  @throws IOException on error
+     */
+    static void write(final File file, final Map<TopicPartition, Long> offsets,
+                      final Map<AlarmPath, AlarmPV> config, final AlarmPV deleted) throws IOException
+    {
+        final File tmp = new File(file.getPath() + ".tmp");
+        final CRC32 crc = new CRC32();
+        try
+        (
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                                         new CheckedOutputStream(new FileOutputStream(tmp), crc)));
+        )
+        {
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+            out.writeLong(System.currentTimeMillis());
+
+            out.writeInt(offsets.size());
+            for (Map.Entry<TopicPartition, Long> entry : offsets.entrySet())
+            {
+                writeString(out, entry.getKey().topic());
+                out.writeInt(entry.getKey().partition());
+                out.writeLong(entry.getValue());
+            }
+
+            out.writeInt(config.size());
+            for (Map.Entry<AlarmPath, AlarmPV> entry : config.entrySet())
+            {
+                writeString(out, entry.getKey().toString());
+                final AlarmPV pv = entry.getValue();
+                if (pv == deleted)
+                {
+                    out.writeByte(DELETED);
+                    continue;
+                }
+                out.writeByte(PV);
+                writeString(out, pv.getDescription());
+                out.writeByte(pv.getSeverity().ordinal());
+                writeString(out, pv.getMessage());
+                out.writeByte(pv.getCurrentSeverity().ordinal());
+                writeString(out, pv.getCurrentMessage());
+                writeString(out, pv.getValue());
+                out.writeLong(pv.getTimestamp().getEpochSecond());
+                out.writeInt(pv.getTimestamp().getNano());
+            }
+            // Checksum of what's been written so far
+            out.flush();
+            out.writeLong(crc.getValue());
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeString(final DataOutputStream out, final String text) throws IOException
+    {
+        final byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /** Read checkpoint
+     *  @param file Checkpoint file, memory-mapped while reading
+     *  @return {@link Checkpoint}
+     *  @throws Exception on error, including incomplete or corrupted file
+     */
+    static Checkpoint read(final File file) throws Exception
+    {
+        try
+        (
+            final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        )
+        {
+            final MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            // Verify checksum before parsing
+            final int end = buf.limit() - Long.BYTES;
+            if (end < 0)
+                throw new Exception("Checkpoint " + file + " is incomplete");
+            final CRC32 crc = new CRC32();
+            final ByteBuffer content = buf.duplicate();
+            content.limit(end);
+            crc.update(content);
+            if (crc.getValue() != buf.getLong(end))
+                throw new Exception("Checkpoint " + file + " has wrong checksum");
+
+            if (buf.getInt() != MAGIC)
+                throw new Exception("Checkpoint " + file + " has wrong format");
+            final int format = buf.getInt();
+            if (format != FORMAT)
+                throw new Exception("Checkpoint " + file + " has unknown format " + format);
+            final Instant time = Instant.ofEpochMilli(buf.getLong());
+
+            int count = buf.getInt();
+            final Map<TopicPartition, Long> offsets = new HashMap<>(count);
+            for (int i=0; i<count; ++i)
+            {
+                final String topic = readString(buf);
+                final int partition = buf.getInt();
+                offsets.put(new TopicPartition(topic, partition), buf.getLong());
+            }
+
+            count = buf.getInt();
+            final List<AlarmPV> pvs = new ArrayList<>(count);
+            final List<AlarmPath> deleted = new ArrayList<>();
+            for (int i=0; i<count; ++i)
+            {
+                final AlarmPath path = AlarmPath.of(readString(buf));
+                if (buf.get() == DELETED)
+                {
+                    deleted.add(path);
+                    continue;
+                }
+                final AlarmPV pv = new AlarmPV(path);
+                pv.setDescription(StringPool.intern(readString(buf)));
+                final SeverityLevel severity = severities[buf.get()];
+                final String message = StringPool.intern(readString(buf));
+                final SeverityLevel current_severity = severities[buf.get()];
+                final String current_message = StringPool.intern(readString(buf));
+                final String value = StringPool.intern(readString(buf));
+                final long seconds = buf.getLong();
+                final int nano = buf.getInt();
+                pv.setAlarm(severity, message, current_severity, current_message, value,
+                            Instant.ofEpochSecond(seconds, nano));
+                pvs.add(pv);
+            }
+            return new Checkpoint(time, offsets, pvs, deleted);
+        }
+    }
+
+    private static String readString(final ByteBuffer buf)
+    {
+        final int length = buf.getInt();
+        final ByteBuffer bytes = buf.slice();
+        bytes.limit(length);
+        buf.position(buf.position() + length);
+        return StandardCharsets.UTF_8.decode(bytes).toString();
+    }
+}
@@ -0,0 +1,122 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/** Histogram with fixed buckets
+ *
+ *  <p>Uses striped counters, so threads that add
+ *  observations hardly ever contend.
+ *  Reading may see an observation in the count but not yet in the sum.
+ *
+ *  @author Kay Kasemir
+ */
+public class Histogram
+{
+    /** Nanosecond bucket bounds for durations from 10us to 10s */
+    public static final long[] DURATION_NANOS =
+    {
+        10_000L, 50_000L, 100_000L, 500_000L,
+        1_000_000L, 5_000_000L, 10_000_000L, 50_000_000L,
+        100_000_000L, 500_000_000L, 1_000_000_000L, 5_000_000_000L, 10_000_000_000L
+    };
+
+    /** Nanosecond bucket bounds for short durations from 100ns to 10ms,
+     *  like handling one update
+     */
+    public static final long[] SHORT_DURATION_NANOS =
+    {
+        100L, 250L, 500L,
+        1_000L, 2_500L, 5_000L, 10_000L, 25_000L, 50_000L,
+        100_000L, 500_000L, 1_000_000L, 10_000_000L
+    };
+
+    /** Upper bounds of buckets, inclusive */
+    private final long[] bounds;
+
+    /** Count for each bucket, plus one for values above the last bound */
+    private final LongAdder[] counts;
+
+    private final LongAdder sum = new LongAdder();
+
+    /** @param bounds Upper bounds of buckets, increasing */
+    public Histogram(final long... bounds)
+    {
+        this.bounds = bounds;
+        counts = new LongAdder[bounds.length + 1];
+        for (int i=0; i<counts.length; ++i)
+            counts[i] = new LongAdder();
+    }
+
+    /** @param value Value to add */
+    public void observe(final long value)
+    {
+        int i = 0;
+        while (i < bounds.length  &&  value > bounds[i])
+            ++i;
+        counts[i].increment();
+        sum.add(value);
+    }
+
+    /** @return Number of observations */
+    public long getCount()
+    {
+        long total = 0;
+        for (LongAdder count : counts)
+            total += count.sum();
+        return total;
+    }
+
+    /** @return Sum of all observations */
+    public long getSum()
+    {
+        return sum.sum();
+    }
+
+    /** Write in Prometheus text format
+     *
+     *  @param out Where to write
+     *  @param name Metric name
+     *  @param labels Labels like <code>a="x",b="y"</code>, may be empty
+     *  @param divisor Divisor for bucket bounds and sum, for example 1e9 to show nanoseconds as seconds
+     */
+    public void write(final StringBuilder out, final String name, final String labels, final double divisor)
+    {
+        final String prefix = labels.isEmpty() ? "" : labels + ",";
+        long total = 0;
+        for (int i=0; i<counts.length; ++i)
+        {
+            total += counts[i].sum();
+            out.append(name).append("_bucket{").append(prefix).append("le=\"");
+            if (i < bounds.length)
+                out.append(format(bounds[i] / divisor));
+            else
+                out.append("+Inf");
+            out.append("\"} ").append(total).append('\n');
+        }
+        out.append(name).append("_sum");
+        if (! labels.isEmpty())
+            out.append('{').append(labels).append('}');
+        out.append(' ').append(format(sum.sum() / divisor)).append('\n');
+        out.append(name).append("_count");
+        if (! labels.isEmpty())
+            out.append('{').append(labels).append('}');
+        out.append(' ').append(total).append('\n');
+    }
+
+    /** @param value Value
+     *  @return Text without trailing ".0" for integers
+     */
+    static String format(final double value)
+    {
+        if (value == Math.rint(value)  &&  Math.abs(value) < 1e15)
+            return Long.toString((long) value);
+        return Double.toString(value);
+    }
+}
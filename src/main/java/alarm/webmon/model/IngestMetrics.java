@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.TopicPartition;
+
+/** Metrics of the message handling of an {@link AlarmMonitor}
+ *
+ *  <p>Updated by the message handler, read by the metrics servlet.
+ *
+ *  @author Kay Kasemir
+ */
+public class IngestMetrics
+{
+    /** Received 'config:' records, including tombstones */
+    public final LongAdder config_records = new LongAdder();
+
+    /** Received 'state:' records */
+    public final LongAdder state_records = new LongAdder();
+
+    /** Received records that are neither 'config:' nor 'state:' */
+    public final LongAdder other_records = new LongAdder();
+
+    /** Received 'config:' records without value, i.e. deletions */
+    public final LongAdder tombstones = new LongAdder();
+
+    /** Duration of <code>poll</code>, nanoseconds */
+    public final Histogram poll_duration = new Histogram(Histogram.DURATION_NANOS);
+
+    /** Number of records per poll */
+    public final Histogram poll_records = new Histogram(0, 1, 10, 50, 100, 250, 500, 1000, 5000);
+
+    /** Duration of handling one update, nanoseconds */
+    public final Histogram update_duration = new Histogram(Histogram.SHORT_DURATION_NANOS);
+
+    /** Lag in records by partition, as reported by the consumer */
+    private volatile Map<TopicPartition, Double> lag = Collections.emptyMap();
+
+    /** @param metrics Consumer metrics with 'records-lag' per topic and partition */
+    void updateLag(final Map<MetricName, ? extends Metric> metrics)
+    {
+        final Map<TopicPartition, Double> update = new HashMap<>();
+        for (Map.Entry<MetricName, ? extends Metric> entry : metrics.entrySet())
+        {
+            final MetricName name = entry.getKey();
+            final String topic = name.tags().get("topic");
+            final String partition = name.tags().get("partition");
+            if (! "records-lag".equals(name.name())  ||  topic == null  ||  partition == null)
+                continue;
+            final Object value = entry.getValue().metricValue();
+            if (value instanceof Number  &&  ! Double.isNaN(((Number) value).doubleValue()))
+                update.put(new TopicPartition(topic, Integer.parseInt(partition)), ((Number) value).doubleValue());
+        }
+        lag = update;
+    }
+
+    /** @return Lag in records by partition */
+    public Map<TopicPartition, Double> getLag()
+    {
+        return lag;
+    }
+}
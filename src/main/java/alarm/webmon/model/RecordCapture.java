@@ -0,0 +1,153 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.common.record.TimestampType;
+
+/** Capture of received records
+ *
+ *  <p>File with the topic, partition, offset, time stamp,
+ *  key and value of each record in the order received,
+ *  for replaying alarm traffic without Kafka.
+ *
+ *  @author Kay Kasemir
+ */
+public class RecordCapture
+{
+    /** File starts with "AWRC" */
+    private static final int MAGIC = 0x41575243;
+
+    /** Format version */
+    private static final int FORMAT = 1;
+
+    /** Writes records to capture file */
+    public static class Writer implements Closeable
+    {
+        private final DataOutputStream out;
+
+        /** @param file Capture file, will be overwritten
+         *  @throws IOException on error
+         */
+        public Writer(final File file) throws IOException
+        {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT);
+        }
+
+        /** @param record Record to add
+         *  @throws IOException on error
+         */
+        public void write(final ConsumerRecord<byte[], byte[]> record) throws IOException
+        {
+            out.writeUTF(record.topic());
+            out.writeInt(record.partition());
+            out.writeLong(record.offset());
+            out.writeLong(record.timestamp());
+            writeBytes(record.key());
+            writeBytes(record.value());
+        }
+
+        private void writeBytes(final byte[] bytes) throws IOException
+        {
+            if (bytes == null)
+                out.writeInt(-1);
+            else
+            {
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+
+        /** Write buffered records to file
+         *  @throws IOException on error
+         */
+        public void flush() throws IOException
+        {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            out.close();
+        }
+    }
+
+    /** Reads records from capture file */
+    public static class Reader implements Closeable
+    {
+        private final DataInputStream in;
+
+        /** @param file Capture file
+         *  @throws IOException on error
+         */
+        public Reader(final File file) throws IOException
+        {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC  ||  in.readInt() != FORMAT)
+            {
+                in.close();
+                throw new IOException("Unknown format of " + file);
+            }
+        }
+
+        /** @return Next record, <code>null</code> at end of file
+         *  @throws IOException on error
+         */
+        public ConsumerRecord<byte[], byte[]> next() throws IOException
+        {
+            try
+            {
+                final String topic = in.readUTF();
+                final int partition = in.readInt();
+                final long offset = in.readLong();
+                final long timestamp = in.readLong();
+                final byte[] key = readBytes();
+                final byte[] value = readBytes();
+                return new ConsumerRecord<>(topic, partition, offset, timestamp, TimestampType.CREATE_TIME,
+                                            ConsumerRecord.NULL_CHECKSUM,
+                                            key == null ? ConsumerRecord.NULL_SIZE : key.length,
+                                            value == null ? ConsumerRecord.NULL_SIZE : value.length,
+                                            key, value);
+            }
+            catch (EOFException ex)
+            {   // End of file, or last record incomplete because capture was interrupted
+                return null;
+            }
+        }
+
+        private byte[] readBytes() throws IOException
+        {
+            final int length = in.readInt();
+            if (length < 0)
+                return null;
+            final byte[] bytes = new byte[length];
+            in.readFully(bytes);
+            return bytes;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            in.close();
+        }
+    }
+}
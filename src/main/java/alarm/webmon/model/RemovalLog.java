@@ -0,0 +1,71 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+import java.util.Collection;
+
+/** Bounded log of PVs that left the active or acknowledged alarms
+ *
+ *  <p>Ring buffer of state version and path.
+ *  Once full, the oldest entries are overwritten,
+ *  and clients that are further behind need a full snapshot.
+ *
+ *  @author Kay Kasemir
+ */
+class RemovalLog
+{
+    private final long[] versions;
+    private final AlarmPath[] paths;
+
+    /** Index of the next entry to write */
+    private int next = 0;
+
+    /** Number of valid entries */
+    private int size = 0;
+
+    /** Newest version that has been overwritten */
+    private long lost = 0;
+
+    /** @param capacity Number of removals to keep */
+    RemovalLog(final int capacity)
+    {
+        versions = new long[capacity];
+        paths = new AlarmPath[capacity];
+    }
+
+    /** @param version State version of the removal
+     *  @param path Path of the removed PV
+     */
+    synchronized void add(final long version, final AlarmPath path)
+    {
+        if (size == versions.length)
+            lost = versions[next];
+        else
+            ++size;
+        versions[next] = version;
+        paths[next] = path;
+        next = (next + 1) % versions.length;
+    }
+
+    /** @param since State version known to a client
+     *  @param result Paths removed after that version are added to this collection
+     *  @return <code>false</code> if removals after that version have been lost
+     */
+    synchronized boolean getRemovals(final long since, final Collection<AlarmPath> result)
+    {
+        if (since < lost)
+            return false;
+        for (int i=0; i<size; ++i)
+        {
+            final int index = (next - size + i + versions.length) % versions.length;
+            if (versions[index] > since)
+                result.add(paths[index]);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+/** Bounded pool of strings
+ *
+ *  <p>Messages like "LOLO_ALARM" or "Disconnected" repeat across
+ *  thousands of PVs and updates.
+ *  The pool returns the same instance for the same text,
+ *  so PVs share one copy instead of each keeping a freshly decoded string.
+ *
+ *  <p>The pool is a fixed size cache where each text maps to a pair of slots,
+ *  the more recently used one first.
+ *  A new text evicts the older one of the pair, so unique values
+ *  can't grow the pool, while texts that are used again tend to stay.
+ *  An evicted text is simply created anew on the next lookup.
+ *
+ *  <p>Threads access the slots without locking.
+ *  Strings are immutable, so a race can at most drop an entry
+ *  or create another copy of a text.
+ *
+ *  @author Kay Kasemir
+ */
+class StringPool
+{
+    /** Number of slots, power of 2 */
+    static final int SIZE = 8192;
+
+    /** Longer texts are not pooled */
+    static final int MAX_LENGTH = 64;
+
+    private static final String[] slots = new String[SIZE];
+
+    private StringPool()
+    {
+        // Static methods only
+    }
+
+    /** @param text Text, may be <code>null</code>
+     *  @return Pooled instance of the text
+     */
+    static String intern(final String text)
+    {
+        if (text == null  ||  text.length() > MAX_LENGTH)
+            return text;
+        final int set = getSet(text.hashCode());
+        final String first = slots[set];
+        if (text.equals(first))
+            return first;
+        final String second = slots[set+1];
+        if (text.equals(second))
+            return promote(set, first, second);
+        return add(set, first, text);
+    }
+
+    /** Get text without creating a string when it's already in the pool
+     *
+     *  @param chars Characters
+     *  @param offset Offset of the text in chars
+     *  @param length Length of the text
+     *  @return Pooled instance of the text
+     */
+    static String intern(final char[] chars, final int offset, final int length)
+    {
+        if (length > MAX_LENGTH)
+            return new String(chars, offset, length);
+        // Same as String.hashCode()
+        int hash = 0;
+        for (int i=0; i<length; ++i)
+            hash = 31*hash + chars[offset + i];
+        final int set = getSet(hash);
+        final String first = slots[set];
+        if (matches(first, chars, offset, length))
+            return first;
+        final String second = slots[set+1];
+        if (matches(second, chars, offset, length))
+            return promote(set, first, second);
+        return add(set, first, new String(chars, offset, length));
+    }
+
+    /** @param hash Hash code of a text
+     *  @return Index of the first slot for the text
+     */
+    static int getSet(final int hash)
+    {
+        return (hash ^ (hash >>> 16)) & (SIZE - 2);
+    }
+
+    /** @param text Pooled text, may be <code>null</code>
+     *  @param chars Characters
+     *  @param offset Offset of the text in chars
+     *  @param length Length of the text
+     *  @return <code>true</code> if the pooled text has those characters
+     */
+    private static boolean matches(final String text, final char[] chars, final int offset, final int length)
+    {
+        if (text == null  ||  text.length() != length)
+            return false;
+        for (int i=0; i<length; ++i)
+            if (text.charAt(i) != chars[offset + i])
+                return false;
+        return true;
+    }
+
+    /** @param set Index of first slot
+     *  @param first Text in first slot
+     *  @param second Text in second slot that was just used
+     *  @return second
+     */
+    private static String promote(final int set, final String first, final String second)
+    {
+        slots[set] = second;
+        slots[set+1] = first;
+        return second;
+    }
+
+    /** @param set Index of first slot
+     *  @param first Text in first slot, moves to second slot
+     *  @param text New text
+     *  @return text
+     */
+    private static String add(final int set, final String first, final String text)
+    {
+        slots[set+1] = first;
+        slots[set] = text;
+        return text;
+    }
+}
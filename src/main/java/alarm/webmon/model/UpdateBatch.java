@@ -0,0 +1,195 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** Updates received in one poll, coalesced by path
+ *
+ *  <p>Of several 'state:' updates for the same path,
+ *  only the last one needs to be applied,
+ *  unless there is a 'config:' update between them
+ *  which might disable or re-create the PV.
+ *  Replaced 'state:' updates remain in the batch, marked as replaced,
+ *  for the history of state updates.
+ *  A 'config:' deletion replaces all earlier updates for its path.
+ *
+ *  <p>Re-used by the message handler, not thread-safe.
+ *
+ *  @author Kay Kasemir
+ */
+class UpdateBatch
+{
+    /** Path prefix for config updates */
+    private static final byte[] CONFIG_PREFIX_BYTES = AlarmMonitor.CONFIG_PREFIX.getBytes(StandardCharsets.UTF_8);
+
+    /** Path prefix for state updates */
+    private static final byte[] STATE_PREFIX_BYTES = AlarmMonitor.STATE_PREFIX.getBytes(StandardCharsets.UTF_8);
+
+    /** One 'config:' or 'state:' update */
+    static class Update
+    {
+        final AlarmPath path;
+        final boolean is_config;
+        final byte[] value;
+
+        /** Replaced by a later 'state:' update for the same path? */
+        boolean replaced = false;
+
+        Update(final AlarmPath path, final boolean is_config, final byte[] value)
+        {
+            this.path = path;
+            this.is_config = is_config;
+            this.value = value;
+        }
+    }
+
+    /** Updates of one path within the batch */
+    private static class Pending
+    {
+        /** Index of 'state:' update that may be replaced, -1 if none */
+        int state = -1;
+
+        /** Indices of all updates for the path */
+        int[] indices = new int[2];
+        int count = 0;
+
+        void add(final int index)
+        {
+            if (count >= indices.length)
+                indices = Arrays.copyOf(indices, indices.length * 2);
+            indices[count++] = index;
+        }
+    }
+
+    /** Updates in received order, <code>null</code> where deleted */
+    private final List<Update> updates = new ArrayList<>();
+
+    private final Map<AlarmPath, Pending> pending = new HashMap<>();
+
+    /** Number of updates replaced by a later one */
+    private int coalesced = 0;
+
+    /** Number of received records by type */
+    private int configs = 0, states = 0, tombstones = 0, others = 0;
+
+    /** Add received record
+     *
+     *  <p>Records that are neither 'config:' nor 'state:' are ignored.
+     *
+     *  @param key Record key, may be <code>null</code>
+     *  @param value Record value, <code>null</code> for deletion
+     */
+    void add(final byte[] key, final byte[] value)
+    {
+        final boolean is_config;
+        final int skip;
+        if (startsWith(key, CONFIG_PREFIX_BYTES))
+        {
+            ++configs;
+            if (value == null)
+                ++tombstones;
+            is_config = true;
+            skip = CONFIG_PREFIX_BYTES.length;
+        }
+        else if (startsWith(key, STATE_PREFIX_BYTES))
+        {
+            ++states;
+            // 'state:' deletions are ignored anyway
+            if (value == null)
+                return;
+            is_config = false;
+            skip = STATE_PREFIX_BYTES.length;
+        }
+        else
+        {
+            ++others;
+            return;
+        }
+
+        final AlarmPath path = AlarmPath.of(new String(key, skip, key.length - skip, StandardCharsets.UTF_8));
+        final Pending previous = pending.computeIfAbsent(path, p -> new Pending());
+        if (is_config)
+        {
+            if (value == null)
+            {   // Deletion replaces everything before
+                for (int i=0; i<previous.count; ++i)
+                {
+                    final Update deleted = updates.set(previous.indices[i], null);
+                    if (deleted != null  &&  ! deleted.replaced)
+                        ++coalesced;
+                }
+                previous.count = 0;
+            }
+            // State updates before a config must be applied
+            previous.state = -1;
+        }
+        else if (previous.state >= 0)
+        {   // Replace previous state update
+            updates.get(previous.state).replaced = true;
+            ++coalesced;
+        }
+
+        final int index = updates.size();
+        updates.add(new Update(path, is_config, value));
+        previous.add(index);
+        if (! is_config)
+            previous.state = index;
+    }
+
+    /** @return Updates in received order, <code>null</code> where deleted,
+     *          {@link Update#replaced} where replaced by a later 'state:' update
+     */
+    List<Update> getUpdates()
+    {
+        return updates;
+    }
+
+    /** @return Number of updates that were replaced by a later one */
+    int getCoalesced()
+    {
+        return coalesced;
+    }
+
+    /** @param metrics Metrics to which the received record counts are added */
+    void addCounts(final IngestMetrics metrics)
+    {
+        metrics.config_records.add(configs);
+        metrics.state_records.add(states);
+        metrics.tombstones.add(tombstones);
+        metrics.other_records.add(others);
+    }
+
+    /** Clear for next batch */
+    void clear()
+    {
+        updates.clear();
+        pending.clear();
+        coalesced = 0;
+        configs = states = tombstones = others = 0;
+    }
+
+    /** @param key Record key, may be <code>null</code>
+     *  @param prefix Prefix
+     *  @return <code>true</code> if key starts with prefix
+     */
+    private static boolean startsWith(final byte[] key, final byte[] prefix)
+    {
+        if (key == null  ||  key.length < prefix.length)
+            return false;
+        for (int i=0; i<prefix.length; ++i)
+            if (key[i] != prefix[i])
+                return false;
+        return true;
+    }
+}
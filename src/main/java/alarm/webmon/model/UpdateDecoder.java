@@ -0,0 +1,252 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+import static alarm.webmon.model.AlarmMonitor.json_factory;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.io.NumberInput;
+
+/** Decoder for the JSON of 'config:' and 'state:' messages
+ *
+ *  <p>Streams over the JSON tokens, extracting only the fields
+ *  used by the {@link AlarmMonitor} while skipping all others,
+ *  for example the guidance, displays and commands of a configuration.
+ *
+ *  <p>Field values are converted like <code>JsonNode.asText()</code>,
+ *  <code>asLong()</code> etc. would convert them.
+ *  Texts are taken from the {@link StringPool}.
+ *
+ *  <p>Fields are re-used for each message, not thread-safe.
+ *
+ *  @author Kay Kasemir
+ */
+public class UpdateDecoder
+{
+    /** Configuration: Description, <code>null</code> if not a PV */
+    public String description;
+
+    /** Configuration: Enabled? */
+    public boolean enabled;
+
+    /** State: Severity, <code>null</code> if not provided */
+    public String severity;
+
+    /** State: Current severity, <code>null</code> if not provided */
+    public String current_severity;
+
+    /** State: Message, <code>null</code> if not provided */
+    public String message;
+
+    /** State: Current message, <code>null</code> if not provided */
+    public String current_message;
+
+    /** State: Value, <code>null</code> if not provided */
+    public String value;
+
+    /** State: Was time provided? */
+    public boolean has_time;
+
+    /** State: Time stamp */
+    public long seconds;
+    public int nano;
+
+    /** Decode configuration
+     *  @param json UTF-8 encoded JSON
+     *  @return <code>false</code> if there was no JSON value
+     *  @throws IOException on error
+     */
+    public boolean decodeConfig(final byte[] json) throws IOException
+    {
+        description = null;
+        enabled = true;
+        try
+        (
+            final JsonParser p = json_factory.createParser(json);
+        )
+        {
+            final JsonToken start = p.nextToken();
+            if (start == null)
+                return false;
+            if (start != JsonToken.START_OBJECT)
+                return true;
+            while (p.nextToken() == JsonToken.FIELD_NAME)
+            {
+                final String field = p.getCurrentName();
+                p.nextToken();
+                if ("description".equals(field))
+                    description = asPooledText(p);
+                else if ("enabled".equals(field))
+                    enabled = asBoolean(p);
+                else
+                    p.skipChildren();
+            }
+            return true;
+        }
+    }
+
+    /** Decode state
+     *  @param json UTF-8 encoded JSON
+     *  @throws IOException on error
+     */
+    public void decodeState(final byte[] json) throws IOException
+    {
+        severity = current_severity = message = current_message = value = null;
+        has_time = false;
+        seconds = 0;
+        nano = 0;
+        try
+        (
+            final JsonParser p = json_factory.createParser(json);
+        )
+        {
+            if (p.nextToken() != JsonToken.START_OBJECT)
+                return;
+            while (p.nextToken() == JsonToken.FIELD_NAME)
+            {
+                final String field = p.getCurrentName();
+                final JsonToken token = p.nextToken();
+                if ("severity".equals(field))
+                    severity = asPooledText(p);
+                else if ("current_severity".equals(field))
+                    current_severity = asPooledText(p);
+                else if ("message".equals(field))
+                    message = asPooledText(p);
+                else if ("current_message".equals(field))
+                    current_message = asPooledText(p);
+                else if ("value".equals(field))
+                    value = asPooledText(p);
+                else if ("time".equals(field))
+                {
+                    has_time = true;
+                    seconds = 0;
+                    nano = 0;
+                    if (token == JsonToken.START_OBJECT)
+                        decodeTime(p);
+                    else
+                        p.skipChildren();
+                }
+                else
+                    p.skipChildren();
+            }
+        }
+    }
+
+    /** @param p Parser positioned on start of "time" object */
+    private void decodeTime(final JsonParser p) throws IOException
+    {
+        while (p.nextToken() == JsonToken.FIELD_NAME)
+        {
+            final String field = p.getCurrentName();
+            p.nextToken();
+            if ("seconds".equals(field))
+                seconds = asLong(p);
+            else if ("nano".equals(field))
+                nano = asInt(p);
+            else
+                p.skipChildren();
+        }
+    }
+
+    /** @param p Parser positioned on a value
+     *  @return Text like <code>JsonNode.asText()</code> from the {@link StringPool}
+     */
+    private static String asPooledText(final JsonParser p) throws IOException
+    {
+        // Look up string values in the parser's buffer, only creating a String when not pooled
+        if (p.currentToken() == JsonToken.VALUE_STRING)
+            return StringPool.intern(p.getTextCharacters(), p.getTextOffset(), p.getTextLength());
+        return StringPool.intern(asText(p));
+    }
+
+    /** @param p Parser positioned on a value
+     *  @return Text like <code>JsonNode.asText()</code>
+     */
+    private static String asText(final JsonParser p) throws IOException
+    {
+        switch (p.currentToken())
+        {
+        case VALUE_STRING:
+            return p.getText();
+        case VALUE_NUMBER_INT:
+        case VALUE_NUMBER_FLOAT:
+            return p.getNumberValue().toString();
+        case VALUE_TRUE:
+            return "true";
+        case VALUE_FALSE:
+            return "false";
+        case VALUE_NULL:
+            return "null";
+        default:
+            p.skipChildren();
+            return "";
+        }
+    }
+
+    /** @param p Parser positioned on a value
+     *  @return Number like <code>JsonNode.asInt()</code>
+     */
+    private static int asInt(final JsonParser p) throws IOException
+    {
+        switch (p.currentToken())
+        {
+        case VALUE_STRING:
+            return NumberInput.parseAsInt(p.getText(), 0);
+        case VALUE_NUMBER_INT:
+        case VALUE_NUMBER_FLOAT:
+            return p.getNumberValue().intValue();
+        case VALUE_TRUE:
+            return 1;
+        default:
+            p.skipChildren();
+            return 0;
+        }
+    }
+
+    /** @param p Parser positioned on a value
+     *  @return Number like <code>JsonNode.asLong()</code>
+     */
+    private static long asLong(final JsonParser p) throws IOException
+    {
+        switch (p.currentToken())
+        {
+        case VALUE_STRING:
+            return NumberInput.parseAsLong(p.getText(), 0);
+        case VALUE_NUMBER_INT:
+        case VALUE_NUMBER_FLOAT:
+            return p.getNumberValue().longValue();
+        case VALUE_TRUE:
+            return 1;
+        default:
+            p.skipChildren();
+            return 0;
+        }
+    }
+
+    /** @param p Parser positioned on a value
+     *  @return Boolean like <code>JsonNode.asBoolean()</code>
+     */
+    private static boolean asBoolean(final JsonParser p) throws IOException
+    {
+        switch (p.currentToken())
+        {
+        case VALUE_TRUE:
+            return true;
+        case VALUE_STRING:
+            return "true".equals(p.getText().trim());
+        case VALUE_NUMBER_INT:
+            return p.getNumberValue().longValue() != 0;
+        default:
+            p.skipChildren();
+            return false;
+        }
+    }
+}
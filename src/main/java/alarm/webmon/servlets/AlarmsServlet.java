@@ -7,44 +7,420 @@
  ******************************************************************************/
 package alarm.webmon.servlets;
 
+import static alarm.webmon.ContextHandler.logger;
+
 import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
 
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.DispatcherType;
+import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 
 import alarm.webmon.ContextHandler;
 import alarm.webmon.model.AlarmMonitor;
-import alarm.webmon.model.AlarmPV;
-
+import alarm.webmon.model.AlarmMonitorListener;
+import alarm.webmon.model.AlarmQuery;
+import alarm.webmon.model.AlarmSnapshot;
+import alarm.webmon.model.SeverityLevel;
 
 /** Servlet for polling current alarms
+ *
+ *  <p><code>/alarms/{config}</code> selects the alarm configuration,
+ *  plain <code>/alarms</code> returns the default configuration.
+ *
+ *  <p>Returns the pre-serialized {@link AlarmSnapshot}
+ *  with an entity tag, so polling clients
+ *  only receive data when the alarms changed.
+ *
+ *  <p>With <code>?since=version&amp;instance=..</code>, only returns
+ *  the alarms that changed since that version of the monitor instance,
+ *  marked as <code>"delta": true</code>.
+ *  Falls back to all alarms when the changes are no longer known.
+ *
+ *  <p>Query parameters select a page of filtered and sorted alarms
+ *  from the active and acknowledged alarms:
+ *  <code>path</code> prefix,
+ *  minimum <code>severity</code>,
+ *  <code>text</code> in description or message,
+ *  <code>sort</code> by <code>severity</code> (default), <code>time</code> or <code>name</code>,
+ *  <code>reverse=true</code>,
+ *  <code>offset</code> and <code>limit</code>.
+ *
+ *  <p>With <code>?wait=version&amp;timeout=seconds</code>, the request is parked
+ *  as an {@link AsyncContext} without a thread
+ *  until the state version of the monitor moves past the given version,
+ *  or the timeout expires, and then answered as if it had just arrived.
+ *
+ *  <p><code>?layout=columnar</code> returns all alarms or the query result
+ *  with one array per field, see {@link AlarmMonitor#serializeColumns}.
+ *  Changes <code>since</code> a version are only available as rows.
+ *  Smile and CBOR, see {@link JSONServlet}, are written as requested
+ *  instead of sending the pre-serialized JSON.
+ *
  *  @author Kay Kasemir
  */
-@WebServlet("/alarms/*")
+@WebServlet(urlPatterns = "/alarms/*", asyncSupported = true)
 public class AlarmsServlet extends JSONServlet
 {
     private static final long serialVersionUID = 1L;
 
+    /** Request attribute for the parsed {@link AlarmQuery} */
+    private static final String QUERY = AlarmQuery.class.getName();
+
+    /** Default and maximum time to wait for a change, seconds */
+    private static final int DEFAULT_WAIT_SECS = 30, MAX_WAIT_SECS = 300;
+
+    /** Request that waits for a change */
+    private static class Waiter
+    {
+        final Waiters waiters;
+        final AsyncContext context;
+
+        /** Version that the client has */
+        final long version;
+
+        /** Has the request been resumed? */
+        final AtomicBoolean resumed = new AtomicBoolean();
+
+        Waiter(final Waiters waiters, final AsyncContext context, final long version)
+        {
+            this.waiters = waiters;
+            this.context = context;
+            this.version = version;
+        }
+
+        /** Answer request on a container thread, once */
+        void resume()
+        {
+            if (! resumed.compareAndSet(false, true))
+                return;
+            waiters.parked.remove(this);
+            try
+            {
+                context.dispatch();
+            }
+            catch (IllegalStateException ex)
+            {
+                // Ignore, client disconnected
+            }
+        }
+    }
+
+    /** Waiting requests of one alarm configuration */
+    private class Waiters implements AlarmMonitorListener
+    {
+        final AlarmMonitor monitor;
+
+        final Set<Waiter> parked = ConcurrentHashMap.newKeySet();
+
+        /** Is a release of waiting requests pending? */
+        final AtomicBoolean release_scheduled = new AtomicBoolean();
+
+        Waiters(final AlarmMonitor monitor)
+        {
+            this.monitor = monitor;
+        }
+
+        @Override
+        public void alarmsChanged(final long version)
+        {
+            // Called for each change, so only check if anybody waits
+            if (! parked.isEmpty()  &&  release_scheduled.compareAndSet(false, true))
+                releaser.execute(this::release);
+        }
+
+        /** Resume all requests that wait for an older version */
+        void release()
+        {
+            release_scheduled.set(false);
+            final long version = monitor.getVersion();
+            for (Waiter waiter : parked)
+                if (waiter.version < version)
+                    waiter.resume();
+        }
+    }
+
+    /** Waiting requests by alarm monitor */
+    private final Map<AlarmMonitor, Waiters> waiters = new HashMap<>();
+
+    private ExecutorService releaser;
+
+    @Override
+    public void init() throws ServletException
+    {
+        releaser = Executors.newSingleThreadExecutor(runnable ->
+        {
+            final Thread thread = new Thread(runnable, "Long Poll");
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (AlarmMonitor monitor : ContextHandler.getAlarmMonitors())
+        {
+            final Waiters parked = new Waiters(monitor);
+            waiters.put(monitor, parked);
+            monitor.addListener(parked);
+        }
+    }
+
+    @Override
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException
+    {
+        final AlarmMonitor monitor = getAlarmMonitor(request);
+        if (monitor == null)
+        {
+            sendUnknownConfig(request, response);
+            return;
+        }
+        final String layout = request.getParameter("layout");
+        if (layout != null  &&  ! (layout.equals("rows")  ||  layout.equals("columnar")))
+        {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid layout '" + layout + "'");
+            return;
+        }
+        // Resumed requests are answered, not parked again
+        if (request.getDispatcherType() != DispatcherType.ASYNC  &&
+            request.getParameter("wait") != null  &&
+            park(monitor, request, response))
+            return;
+        if (isQuery(request))
+            sendQuery(monitor, request, response);
+        else if (request.getParameter("since") != null  &&  ! isColumnar(request))
+            super.doGet(request, response);
+        else if (isColumnar(request)  ||  getFormat(request) != Format.JSON)
+        {
+            // All alarms, but not as the pre-serialized JSON
+            if (checkNotModified(request, response, getETag(monitor, request)))
+                return;
+            super.doGet(request, response);
+        }
+        else
+        {
+            final AlarmSnapshot snapshot = monitor.getSnapshot();
+            sendCached(request, response, snapshot);
+        }
+    }
+
     @Override
     protected void writeJson(final HttpServletRequest request, final JsonGenerator g) throws IOException
     {
-        final AlarmMonitor monitor = ContextHandler.getAlarmMonitor();
+        final AlarmMonitor monitor = getAlarmMonitor(request);
+
+        final AlarmQuery query = (AlarmQuery) request.getAttribute(QUERY);
+        if (isColumnar(request))
+        {
+            monitor.serializeColumns(query, g);
+            return;
+        }
+        if (query != null)
+        {
+            monitor.serialize(query, g);
+            return;
+        }
+
+        // Changes are only known for the same instance of the monitor
+        final String instance = request.getParameter("instance");
+        final long since = getVersion(request.getParameter("since"));
+        if (since >= 0  &&
+            (instance == null  ||  instance.equals(monitor.getInstance()))  &&
+            monitor.serializeChanges(since, g))
+            return;
+        monitor.serialize(g);
+    }
+
+    /** Park request until the alarms change
+     *
+     *  @param monitor Alarm monitor
+     *  @param request Request with "wait" and optional "timeout", "instance"
+     *  @param response Response
+     *  @return <code>true</code> if request was parked or rejected,
+     *          <code>false</code> if it should be answered right away
+     *  @throws IOException on error
+     */
+    private boolean park(final AlarmMonitor monitor, final HttpServletRequest request, final HttpServletResponse response)
+            throws IOException
+    {
+        final long version;
+        final int timeout;
+        try
+        {
+            version = Long.parseLong(request.getParameter("wait").trim());
+            timeout = getCount(request, "timeout", DEFAULT_WAIT_SECS);
+            if (timeout > MAX_WAIT_SECS)
+                throw new IllegalArgumentException("timeout must not exceed " + MAX_WAIT_SECS);
+        }
+        catch (IllegalArgumentException ex)
+        {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid query: " + ex.getMessage());
+            return true;
+        }
+
+        // Version of a different monitor instance, or already changed?
+        final String instance = request.getParameter("instance");
+        if (timeout <= 0  ||
+            (instance != null  &&  ! instance.equals(monitor.getInstance()))  ||
+            monitor.getVersion() > version)
+            return false;
+
+        final Waiters parked = waiters.get(monitor);
+        final AsyncContext context = request.startAsync();
+        context.setTimeout(timeout * 1000L);
+        final Waiter waiter = new Waiter(parked, context, version);
+        context.addListener(new AsyncListener()
+        {
+            @Override
+            public void onStartAsync(final AsyncEvent event)
+            {
+                // Ignore
+            }
+
+            @Override
+            public void onComplete(final AsyncEvent event)
+            {
+                parked.parked.remove(waiter);
+            }
+
+            @Override
+            public void onTimeout(final AsyncEvent event)
+            {
+                // Answer with the unchanged alarms
+                waiter.resume();
+            }
 
-        g.writeStartObject();
+            @Override
+            public void onError(final AsyncEvent event)
+            {
+                logger.log(Level.FINE, "Waiting client disconnected", event.getThrowable());
+                parked.parked.remove(waiter);
+            }
+        });
+        parked.parked.add(waiter);
+        // Alarms may have changed before the request was added
+        if (monitor.getVersion() > version)
+            waiter.resume();
+        return true;
+    }
+
+    /** @param request Request
+     *  @return <code>true</code> if request has query parameters
+     */
+    private static boolean isQuery(final HttpServletRequest request)
+    {
+        for (String param : new String[] { "path", "severity", "text", "sort", "reverse", "offset", "limit" })
+            if (request.getParameter(param) != null)
+                return true;
+        return false;
+    }
+
+    /** @param monitor Alarm monitor
+     *  @param request Request with query parameters
+     *  @param response Response
+     *  @throws IOException on error
+     */
+    private void sendQuery(final AlarmMonitor monitor, final HttpServletRequest request, final HttpServletResponse response)
+            throws ServletException, IOException
+    {
+        final AlarmQuery query;
+        try
+        {
+            final String severity = request.getParameter("severity");
+            final String sort = request.getParameter("sort");
+            query = new AlarmQuery(request.getParameter("path"),
+                                   severity == null ? null : SeverityLevel.valueOf(severity.trim().toUpperCase(Locale.ROOT)),
+                                   request.getParameter("text"),
+                                   sort == null ? AlarmQuery.Sort.SEVERITY : AlarmQuery.Sort.valueOf(sort.trim().toUpperCase(Locale.ROOT)),
+                                   Boolean.parseBoolean(request.getParameter("reverse")),
+                                   getCount(request, "offset", 0),
+                                   getCount(request, "limit", Integer.MAX_VALUE));
+        }
+        catch (IllegalArgumentException ex)
+        {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid query: " + ex.getMessage());
+            return;
+        }
+
+        if (checkNotModified(request, response, getETag(monitor, request)))
+            return;
+        request.setAttribute(QUERY, query);
+        super.doGet(request, response);
+    }
+
+    /** @param request Request
+     *  @return <code>true</code> if request asks for alarms in columns
+     */
+    private static boolean isColumnar(final HttpServletRequest request)
+    {
+        return "columnar".equals(request.getParameter("layout"));
+    }
+
+    /** @param monitor Alarm monitor
+     *  @param request Request for all alarms or a query
+     *  @return Entity tag for the response in the requested layout and format
+     */
+    private static String getETag(final AlarmMonitor monitor, final HttpServletRequest request)
+    {
+        // Result for a URL only changes with the state version
+        final StringBuilder etag = new StringBuilder();
+        etag.append('"').append(monitor.getInstance()).append('-').append(monitor.getVersion());
+        if (isQuery(request))
+            etag.append("-q");
+        if (isColumnar(request))
+            etag.append("-c");
+        final Format format = getFormat(request);
+        if (format != Format.JSON)
+            etag.append('-').append(format.name().toLowerCase(Locale.ROOT));
+        return etag.append('"').toString();
+    }
+
+    @Override
+    public void destroy()
+    {
+        releaser.shutdownNow();
+        for (Waiters parked : waiters.values())
+        {
+            parked.monitor.removeListener(parked);
+            for (Waiter waiter : parked.parked)
+            {
+                try
+                {
+                    waiter.context.complete();
+                }
+                catch (Exception ex)
+                {
+                    // Ignore, already completed
+                }
+            }
+        }
+    }
+
+    /** @param text Text of a version number, may be <code>null</code>
+     *  @return Version or -1
+     */
+    static long getVersion(final String text)
+    {
+        if (text == null)
+            return -1;
+        try
         {
-            g.writeArrayFieldStart("active");
-            for (AlarmPV pv :  monitor.getActiveAlarms())
-                pv.serialize(g);
-            g.writeEndArray();
+            return Long.parseLong(text.trim());
         }
+        catch (NumberFormatException ex)
         {
-            g.writeArrayFieldStart("acknowledged");
-            for (AlarmPV pv :  monitor.getAchnowledgedAlarms())
-                pv.serialize(g);
-            g.writeEndArray();
+            return -1;
         }
-        g.writeEndObject();
     }
 }
@@ -14,7 +14,6 @@ import javax.servlet.http.HttpServletRequest;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 
-import alarm.webmon.ContextHandler;
 import alarm.webmon.model.AlarmMonitor;
 
 /** Servlet that triggers debug output to console
@@ -28,7 +27,7 @@ public class DebugServlet extends JSONServlet
     @Override
     protected void writeJson(HttpServletRequest request, JsonGenerator g) throws IOException
     {
-        final AlarmMonitor monitor = ContextHandler.getAlarmMonitor();
+        final AlarmMonitor monitor = getAlarmMonitor(request);
         monitor.dump();
 
         g.writeStringField("info", "See web console");
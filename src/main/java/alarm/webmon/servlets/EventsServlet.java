@@ -0,0 +1,436 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.servlets;
+
+import static alarm.webmon.ContextHandler.logger;
+import static alarm.webmon.model.AlarmMonitor.json_factory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import alarm.webmon.ContextHandler;
+import alarm.webmon.model.AlarmMonitor;
+import alarm.webmon.model.AlarmMonitorListener;
+import alarm.webmon.model.AlarmSnapshot;
+
+/** Servlet that pushes alarm changes as server-sent events
+ *
+ *  <p><code>/events/{config}</code> selects the alarm configuration,
+ *  plain <code>/events</code> streams the default configuration.
+ *
+ *  <p>Each client first receives a "snapshot" event with all alarms,
+ *  then "delta" events in the format of <code>/alarms?since=..</code>.
+ *  Bursts of changes are coalesced into one event per client.
+ *  Idle clients are parked as {@link AsyncContext} without a thread.
+ *
+ *  <p>Events are written with non-blocking I/O,
+ *  so a slow client cannot delay the events of other clients.
+ *  A client that is still busy receiving the previous event is skipped,
+ *  and receives all changes since then in one event once it's ready.
+ *  Clients that accept no data for {@link #STALLED_MS} are closed.
+ *
+ *  @author Kay Kasemir
+ */
+@WebServlet(urlPatterns = "/events/*", asyncSupported = true)
+public class EventsServlet extends HttpServlet
+{
+    private static final long serialVersionUID = 1L;
+
+    /** Delay used to coalesce changes, milliseconds */
+    private static final long COALESCE_MS = 250;
+
+    /** Period of keep-alive comments that detect closed connections, seconds */
+    private static final long KEEPALIVE_SECS = 30;
+
+    private static final byte[] KEEPALIVE = ":\n\n".getBytes(StandardCharsets.UTF_8);
+
+    /** Time after which a client that doesn't accept data is closed, milliseconds */
+    private static final long STALLED_MS = 60 * 1000L;
+
+    /** Events are sent outside of the request, so their bytes are counted here */
+    private static final MetricsFilter.Endpoint metrics = MetricsFilter.getEndpoint("/events");
+
+    /** Connected client */
+    private static class Client
+    {
+        final Stream stream;
+        final AsyncContext context;
+
+        /** State version that the client has received, -1 before the snapshot */
+        volatile long version = -1;
+
+        /** Time when a write could not complete, 0 while data is accepted. Synchronized on client */
+        long blocked_since = 0;
+
+        Client(final Stream stream, final AsyncContext context)
+        {
+            this.stream = stream;
+            this.context = context;
+        }
+    }
+
+    /** Encoded event */
+    private static class Event
+    {
+        /** State version of the monitor when the event was created */
+        final long version;
+        final byte[] data;
+
+        Event(final long version, final byte[] data)
+        {
+            this.version = version;
+            this.data = data;
+        }
+    }
+
+    /** Clients of one alarm configuration */
+    private class Stream implements AlarmMonitorListener
+    {
+        final AlarmMonitor monitor;
+
+        final Set<Client> clients = ConcurrentHashMap.newKeySet();
+
+        /** Is a flush of changes pending? */
+        final AtomicBoolean flush_scheduled = new AtomicBoolean();
+
+        Stream(final AlarmMonitor monitor)
+        {
+            this.monitor = monitor;
+        }
+
+        @Override
+        public void alarmsChanged(final long version)
+        {
+            if (flush_scheduled.compareAndSet(false, true))
+                timer.schedule(this::flush, COALESCE_MS, TimeUnit.MILLISECONDS);
+        }
+
+        /** Send changes to all clients that are behind */
+        void flush()
+        {
+            flush_scheduled.set(false);
+            // Clients that received the same version get the same event
+            final Map<Long, Event> events = new HashMap<>();
+            for (Client client : clients)
+            {
+                final long since = client.version;
+                if (since >= monitor.getVersion()  ||  isBusy(client))
+                    continue;
+                try
+                {
+                    Event event = events.get(since);
+                    if (event == null)
+                    {
+                        event = createDelta(monitor, since);
+                        events.put(since, event);
+                    }
+                    if (send(client, event.data))
+                        client.version = event.version;
+                }
+                catch (Exception ex)
+                {
+                    logger.log(Level.WARNING, "Cannot send alarm changes", ex);
+                    close(client);
+                }
+            }
+        }
+    }
+
+    /** Streams by alarm monitor */
+    private final Map<AlarmMonitor, Stream> streams = new HashMap<>();
+
+    private ScheduledExecutorService timer;
+
+    @Override
+    public void init() throws ServletException
+    {
+        timer = Executors.newSingleThreadScheduledExecutor(runnable ->
+        {
+            final Thread thread = new Thread(runnable, "Event Sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.scheduleWithFixedDelay(this::keepAlive, KEEPALIVE_SECS, KEEPALIVE_SECS, TimeUnit.SECONDS);
+        for (AlarmMonitor monitor : ContextHandler.getAlarmMonitors())
+        {
+            final Stream stream = new Stream(monitor);
+            streams.put(monitor, stream);
+            monitor.addListener(stream);
+        }
+    }
+
+    @Override
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException
+    {
+        final AlarmMonitor monitor = JSONServlet.getAlarmMonitor(request);
+        if (monitor == null)
+        {
+            JSONServlet.sendUnknownConfig(request, response);
+            return;
+        }
+        final Stream stream = streams.get(monitor);
+
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        // Disable buffering in proxies like nginx
+        response.setHeader("X-Accel-Buffering", "no");
+
+        final AsyncContext context = request.startAsync();
+        context.setTimeout(0);
+        final Client client = new Client(stream, context);
+        context.getResponse().getOutputStream().setWriteListener(new WriteListener()
+        {
+            @Override
+            public void onWritePossible()
+            {
+                writePossible(client);
+            }
+
+            @Override
+            public void onError(final Throwable error)
+            {
+                logger.log(Level.FINE, "Event client disconnected", error);
+                close(client);
+            }
+        });
+        context.addListener(new AsyncListener()
+        {
+            @Override
+            public void onStartAsync(final AsyncEvent event)
+            {
+                // Ignore
+            }
+
+            @Override
+            public void onComplete(final AsyncEvent event)
+            {
+                stream.clients.remove(client);
+            }
+
+            @Override
+            public void onTimeout(final AsyncEvent event)
+            {
+                close(client);
+            }
+
+            @Override
+            public void onError(final AsyncEvent event)
+            {
+                close(client);
+            }
+        });
+
+        stream.clients.add(client);
+        final AlarmSnapshot snapshot = monitor.getSnapshot();
+        if (send(client, event("snapshot", snapshot.getJson())))
+            client.version = snapshot.getVersion();
+        // Flush changes that happened before the client was added,
+        // or the snapshot if the client wasn't ready for it
+        final long version = monitor.getVersion();
+        if (version > client.version)
+            stream.alarmsChanged(version);
+    }
+
+    /** Called by container when client accepts data again
+     *  @param client Client
+     */
+    private void writePossible(final Client client)
+    {
+        try
+        {
+            synchronized (client)
+            {
+                final ServletOutputStream out = client.context.getResponse().getOutputStream();
+                if (! out.isReady())
+                    return;
+                // Complete the previous event
+                out.flush();
+                if (! out.isReady())
+                    return;
+                client.blocked_since = 0;
+            }
+        }
+        catch (Exception ex)
+        {
+            logger.log(Level.FINE, "Event client disconnected", ex);
+            close(client);
+            return;
+        }
+        // Send changes that were skipped while client was busy
+        final long version = client.stream.monitor.getVersion();
+        if (version > client.version)
+            client.stream.alarmsChanged(version);
+    }
+
+    /** @param monitor {@link AlarmMonitor}
+     *  @param since Version known to client
+     *  @return "delta" event, or "snapshot" if changes are no longer known
+     *          or client hasn't received the snapshot
+     *  @throws IOException on error
+     */
+    private Event createDelta(final AlarmMonitor monitor, final long since) throws IOException
+    {
+        if (since >= 0)
+        {
+            // Version is read before the changes, so client will be at least at that version
+            final long version = monitor.getVersion();
+            final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+            final boolean delta;
+            try
+            (
+                final JsonGenerator g = json_factory.createGenerator(buf);
+            )
+            {
+                delta = monitor.serializeChanges(since, g);
+            }
+            if (delta)
+                return new Event(version, event("delta", buf.toByteArray()));
+        }
+        final AlarmSnapshot snapshot = monitor.getSnapshot();
+        return new Event(snapshot.getVersion(), event("snapshot", snapshot.getJson()));
+    }
+
+    /** Periodically send comment to detect closed connections, close stalled clients */
+    private void keepAlive()
+    {
+        final long now = System.currentTimeMillis();
+        for (Stream stream : streams.values())
+            for (Client client : stream.clients)
+            {
+                final long blocked_since;
+                synchronized (client)
+                {
+                    blocked_since = client.blocked_since;
+                }
+                if (blocked_since > 0  &&  now - blocked_since > STALLED_MS)
+                {
+                    logger.log(Level.FINE, "Closing stalled event client");
+                    close(client);
+                }
+                else
+                    send(client, KEEPALIVE);
+            }
+    }
+
+    /** @param name Event name
+     *  @param json Single-line JSON
+     *  @return Encoded event
+     */
+    private static byte[] event(final String name, final byte[] json)
+    {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream(json.length + name.length() + 16);
+        final byte[] head = ("event: " + name + "\ndata: ").getBytes(StandardCharsets.UTF_8);
+        buf.write(head, 0, head.length);
+        buf.write(json, 0, json.length);
+        buf.write('\n');
+        buf.write('\n');
+        return buf.toByteArray();
+    }
+
+    /** @param client Client
+     *  @return <code>true</code> if client is still receiving earlier data
+     */
+    private static boolean isBusy(final Client client)
+    {
+        synchronized (client)
+        {
+            return client.blocked_since > 0;
+        }
+    }
+
+    /** Send event without blocking
+     *
+     *  <p>When the client cannot accept all of the event right away,
+     *  the container completes the write in the background
+     *  and calls {@link #writePossible(Client)} once done.
+     *
+     *  @param client Client
+     *  @param event Encoded event
+     *  @return <code>true</code> on success,
+     *          <code>false</code> if client is still busy with earlier data or has been closed
+     */
+    private boolean send(final Client client, final byte[] event)
+    {
+        try
+        {
+            synchronized (client)
+            {
+                final ServletOutputStream out = client.context.getResponse().getOutputStream();
+                if (! out.isReady())
+                {
+                    if (client.blocked_since == 0)
+                        client.blocked_since = System.currentTimeMillis();
+                    return false;
+                }
+                out.write(event);
+                if (out.isReady())
+                    out.flush();
+                if (! out.isReady()  &&  client.blocked_since == 0)
+                    client.blocked_since = System.currentTimeMillis();
+            }
+            metrics.bytes.add(event.length);
+            return true;
+        }
+        catch (Exception ex)
+        {
+            logger.log(Level.FINE, "Event client disconnected", ex);
+            close(client);
+            return false;
+        }
+    }
+
+    /** @param client Client to remove and close */
+    private void close(final Client client)
+    {
+        client.stream.clients.remove(client);
+        try
+        {
+            client.context.complete();
+        }
+        catch (Exception ex)
+        {
+            // Ignore, already completed
+        }
+    }
+
+    @Override
+    public void destroy()
+    {
+        timer.shutdownNow();
+        for (Stream stream : streams.values())
+        {
+            stream.monitor.removeListener(stream);
+            for (Client client : stream.clients)
+                close(client);
+        }
+    }
+}
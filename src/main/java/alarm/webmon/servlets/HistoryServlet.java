@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.servlets;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/** Servlet for the history of alarm state updates
+ *
+ *  <p><code>/history/{config}?path=/Accelerator/Linac&amp;start=2020-10-19T12:00:00Z&amp;end=..&amp;limit=100</code>
+ *  returns the most recent updates for PVs below the path
+ *  within the time range, newest first.
+ *  Times are ISO-8601 or epoch milliseconds.
+ *
+ *  @author Kay Kasemir
+ */
+@WebServlet("/history/*")
+public class HistoryServlet extends JSONServlet
+{
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of updates to return */
+    private static final int DEFAULT_LIMIT = 1000;
+
+    @Override
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException
+    {
+        try
+        {
+            getTime(request, "start", 0);
+            getTime(request, "end", 0);
+            getCount(request, "limit", DEFAULT_LIMIT);
+        }
+        catch (IllegalArgumentException | DateTimeParseException ex)
+        {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid query: " + ex.getMessage());
+            return;
+        }
+        response.setHeader("Cache-Control", "no-cache");
+        super.doGet(request, response);
+    }
+
+    @Override
+    protected void writeJson(final HttpServletRequest request, final JsonGenerator g) throws IOException
+    {
+        // doGet checked the parameters
+        getAlarmMonitor(request).serializeHistory(getTime(request, "start", Long.MIN_VALUE),
+                                                  getTime(request, "end", Long.MAX_VALUE),
+                                                  request.getParameter("path"),
+                                                  getCount(request, "limit", DEFAULT_LIMIT),
+                                                  g);
+    }
+
+    /** @param request Request
+     *  @param param Name of parameter
+     *  @param default_value Value to use if parameter is missing
+     *  @return Epoch milliseconds
+     */
+    private static long getTime(final HttpServletRequest request, final String param, final long default_value)
+    {
+        final String text = request.getParameter(param);
+        if (text == null)
+            return default_value;
+        final String time = text.trim();
+        if (! time.isEmpty()  &&  time.chars().allMatch(Character::isDigit))
+            return Long.parseLong(time);
+        return Instant.parse(time).toEpochMilli();
+    }
+}
@@ -9,35 +9,314 @@ package alarm.webmon.servlets;
 
 import static alarm.webmon.model.AlarmMonitor.json_factory;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import alarm.webmon.ContextHandler;
+import alarm.webmon.model.AlarmMonitor;
+import alarm.webmon.model.AlarmSnapshot;
 
 /** Servled that returns JSON
+ *
+ *  <p>JSON is written as UTF-8 straight to the response,
+ *  compressed with gzip when the client accepts it.
+ *  Without a known size, the servlet container uses chunked transfer
+ *  for larger responses.
+ *
+ *  <p>Clients that list Smile or CBOR in the "Accept" header
+ *  receive the same content in that binary format,
+ *  written via the same {@link JsonGenerator} API.
+ *
  *  @author Kay Kasemir
  */
 public abstract class JSONServlet extends HttpServlet
 {
     private static final long serialVersionUID = 1L;
 
+    /** Response formats */
+    protected enum Format
+    {
+        JSON("application/json", json_factory),
+        SMILE("application/x-jackson-smile", new SmileFactory()),
+        CBOR("application/cbor", new CBORFactory());
+
+        /** Content type */
+        final String type;
+
+        /** Factory for generators that write this format */
+        final JsonFactory factory;
+
+        private Format(final String type, final JsonFactory factory)
+        {
+            this.type = type;
+            this.factory = factory;
+        }
+    }
+
     @Override
-    final protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException
+    {
+        if (getAlarmMonitor(request) == null)
+        {
+            sendUnknownConfig(request, response);
+            return;
+        }
+        final Format format = getFormat(request);
+        response.setContentType(format.type);
+        if (format == Format.JSON)
+            response.setCharacterEncoding("UTF-8");
+        response.setHeader("Vary", "Accept, Accept-Encoding");
+        OutputStream out = response.getOutputStream();
+        if (acceptsGzip(request))
+        {
+            response.setHeader("Content-Encoding", "gzip");
+            // Each response is compressed anew, so favor speed over size
+            out = new GZIPOutputStream(out, GZIP_BUFFER_SIZE)
+            {
+                {
+                    def.setLevel(Deflater.BEST_SPEED);
+                }
+            };
+        }
+        // Closing the generator finishes the gzip stream
+        try
+        (
+            final JsonGenerator g = format.factory.createGenerator(out, JsonEncoding.UTF8);
+        )
+        {
+            writeJson(request, g);
+        }
+    }
+
+    /** Buffer size for compressing responses */
+    private static final int GZIP_BUFFER_SIZE = 8192;
+
+    /** @param request Request
+     *  @return <code>true</code> if "Accept-Encoding" allows gzip
+     */
+    protected static boolean acceptsGzip(final HttpServletRequest request)
+    {
+        final String accept = request.getHeader("Accept-Encoding");
+        if (accept == null)
+            return false;
+        for (String coding : accept.split(","))
+        {
+            // "gzip", "gzip;q=0.5", but not "gzip;q=0"
+            final String[] parts = coding.split(";");
+            if (parts[0].trim().equalsIgnoreCase("gzip"))
+                return getQuality(parts) > 0;
+        }
+        return false;
+    }
+
+    /** @param request Request
+     *  @return Format preferred by the "Accept" header, defaulting to JSON
+     */
+    protected static Format getFormat(final HttpServletRequest request)
+    {
+        final String accept = request.getHeader("Accept");
+        if (accept == null)
+            return Format.JSON;
+        // "application/cbor, application/json;q=0.5":
+        // Use the binary format if it has the highest quality,
+        // JSON for anything else like "text/html, */*"
+        Format best = Format.JSON;
+        double best_quality = 0;
+        for (String range : accept.split(","))
+        {
+            final String[] parts = range.split(";");
+            final String type = parts[0].trim();
+            for (Format format : Format.values())
+                if (format.type.equalsIgnoreCase(type))
+                {
+                    final double quality = getQuality(parts);
+                    if (quality > best_quality)
+                    {
+                        best = format;
+                        best_quality = quality;
+                    }
+                }
+        }
+        return best;
+    }
+
+    /** @param parts Element of "Accept" or "Accept-Encoding" header split at ';'
+     *  @return Quality from "q=..." parameter, 1 if not specified, 0 if invalid
+     */
+    private static double getQuality(final String[] parts)
+    {
+        for (int i=1; i<parts.length; ++i)
+        {
+            final String param = parts[i].trim();
+            if (param.startsWith("q="))
+            {
+                try
+                {
+                    return Double.parseDouble(param.substring(2));
+                }
+                catch (NumberFormatException ex)
+                {
+                    return 0;
+                }
+            }
+        }
+        return 1;
+    }
+
+    /** @param request Request with optional "/{config}" path info
+     *  @return Requested configuration name, <code>null</code> for default
+     */
+    protected static String getConfig(final HttpServletRequest request)
+    {
+        String config = request.getPathInfo();
+        if (config == null)
+            return null;
+        // Remove leading and trailing '/'
+        int start = 0, end = config.length();
+        while (start < end  &&  config.charAt(start) == '/')
+            ++start;
+        while (end > start  &&  config.charAt(end-1) == '/')
+            --end;
+        config = config.substring(start, end);
+        return config.isEmpty() ? null : config;
+    }
+
+    /** @param request Request
+     *  @param param Name of parameter
+     *  @param default_value Value to use if parameter is missing
+     *  @return Count
+     *  @throws IllegalArgumentException if parameter is not a count
+     */
+    protected static int getCount(final HttpServletRequest request, final String param, final int default_value)
+    {
+        final String text = request.getParameter(param);
+        if (text == null)
+            return default_value;
+        final int count = Integer.parseInt(text.trim());
+        if (count < 0)
+            throw new IllegalArgumentException(param + " must not be negative");
+        return count;
+    }
+
+    /** @param request Request with optional "/{config}" path info
+     *  @return {@link AlarmMonitor} for the requested configuration,
+     *          <code>null</code> if not known
+     */
+    protected static AlarmMonitor getAlarmMonitor(final HttpServletRequest request)
+    {
+        return ContextHandler.getAlarmMonitor(getConfig(request));
+    }
+
+    /** @param response Response
+     *  @param request Request for unknown configuration
+     *  @throws IOException on error
+     */
+    protected static void sendUnknownConfig(final HttpServletRequest request, final HttpServletResponse response) throws IOException
+    {
+        response.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown alarm configuration '" + getConfig(request) + "'");
+    }
+
+    /** Send JSON that was serialized ahead of time
+     *
+     *  <p>Only for JSON, see {@link #getFormat(HttpServletRequest)}.
+     *  Responds with "304 Not Modified" and no body
+     *  when the client already has this entity tag.
+     *  Otherwise sends the snapshot, using its compressed
+     *  copy when the client accepts gzip.
+     *
+     *  @param request {@link HttpServletRequest}
+     *  @param response {@link HttpServletResponse}
+     *  @param snapshot {@link AlarmSnapshot}
+     *  @throws IOException on error
+     */
+    protected void sendCached(final HttpServletRequest request, final HttpServletResponse response,
+                              final AlarmSnapshot snapshot) throws IOException
     {
-        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
-        final JsonGenerator g = json_factory.createGenerator(buf);
-        writeJson(request, g);
-        g.flush();
+        response.setHeader("Vary", "Accept, Accept-Encoding");
+        if (checkNotModified(request, response, snapshot.getETag()))
+            return;
+        if (acceptsGzip(request))
+        {
+            response.setHeader("Content-Encoding", "gzip");
+            sendJson(response, snapshot.getGzip());
+        }
+        else
+            sendJson(response, snapshot.getJson());
+    }
+
+    /** Check if client already has the current data
+     *
+     *  <p>Sets the entity tag and, if the client has it,
+     *  responds with "304 Not Modified".
+     *  The gzip-compressed body is a different representation,
+     *  so its entity tag has a "-gz" suffix.
+     *  Either tag matches, since both are the same data.
+     *
+     *  @param request {@link HttpServletRequest}
+     *  @param response {@link HttpServletResponse}
+     *  @param etag Entity tag of the uncompressed data, including quotes
+     *  @return <code>true</code> if response is complete,
+     *          <code>false</code> if caller needs to send the data
+     */
+    protected static boolean checkNotModified(final HttpServletRequest request, final HttpServletResponse response,
+                                              final String etag)
+    {
+        final String gzip_etag = etag.substring(0, etag.length() - 1) + "-gz\"";
+        response.setHeader("ETag", acceptsGzip(request) ? gzip_etag : etag);
+        // Clients may keep the data, but need to check for changes
+        response.setHeader("Cache-Control", "no-cache");
+        if (matches(request.getHeader("If-None-Match"), etag, gzip_etag))
+        {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return true;
+        }
+        return false;
+    }
 
+    /** @param response {@link HttpServletResponse}
+     *  @param json UTF-8 encoded JSON, may be compressed
+     *  @throws IOException on error
+     */
+    protected static void sendJson(final HttpServletResponse response, final byte[] json) throws IOException
+    {
         response.setContentType("application/json");
-        final PrintWriter writer = response.getWriter();
-        writer.append(buf.toString());
+        response.setCharacterEncoding("UTF-8");
+        response.setContentLength(json.length);
+        response.getOutputStream().write(json);
+    }
+
+    /** @param if_none_match "If-None-Match" header, may be <code>null</code>
+     *  @param etag Entity tag
+     *  @param gzip_etag Entity tag of the compressed data
+     *  @return <code>true</code> if header lists either entity tag
+     */
+    private static boolean matches(final String if_none_match, final String etag, final String gzip_etag)
+    {
+        if (if_none_match == null)
+            return false;
+        for (String tag : if_none_match.split(","))
+        {
+            tag = tag.trim();
+            // Weak comparison, ignore "W/" prefix
+            if (tag.startsWith("W/"))
+                tag = tag.substring(2);
+            if (tag.equals("*")  ||  tag.equals(etag)  ||  tag.equals(gzip_etag))
+                return true;
+        }
+        return false;
     }
 
     /** Derived class implements this to fill the JSON that's returned by servlet
@@ -0,0 +1,180 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.servlets;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+import alarm.webmon.model.Histogram;
+
+/** Filter that measures request latency and response size of each endpoint
+ *
+ *  <p>Latency is the time until the servlet returns,
+ *  which for the asynchronous <code>/events</code>
+ *  only covers the initial snapshot.
+ *  Events sent later are counted by the {@link EventsServlet}.
+ *  Long-poll requests on <code>/alarms</code> are measured
+ *  when they are resumed to send the answer, not while they wait.
+ *
+ *  @author Kay Kasemir
+ */
+@WebFilter(urlPatterns = { "/alarms/*", "/events/*", "/tree/*", "/history/*", "/stats/*", "/ready/*", "/metrics/*", "/debug/*" },
+           asyncSupported = true, dispatcherTypes = { DispatcherType.REQUEST, DispatcherType.ASYNC })
+public class MetricsFilter implements Filter
+{
+    /** Metrics of one endpoint */
+    public static class Endpoint
+    {
+        /** Request duration, nanoseconds */
+        public final Histogram latency = new Histogram(Histogram.DURATION_NANOS);
+
+        /** Bytes sent */
+        public final LongAdder bytes = new LongAdder();
+    }
+
+    /** Metrics by endpoint like "/alarms" */
+    private static final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    /** Response that counts the bytes written */
+    private static class CountingResponse extends HttpServletResponseWrapper
+    {
+        private final LongAdder bytes;
+        private ServletOutputStream stream = null;
+        private PrintWriter writer = null;
+
+        CountingResponse(final HttpServletResponse response, final LongAdder bytes)
+        {
+            super(response);
+            this.bytes = bytes;
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() throws IOException
+        {
+            if (stream == null)
+            {
+                final ServletOutputStream out = super.getOutputStream();
+                stream = new ServletOutputStream()
+                {
+                    @Override
+                    public void write(final int b) throws IOException
+                    {
+                        out.write(b);
+                        bytes.increment();
+                    }
+
+                    @Override
+                    public void write(final byte[] b, final int off, final int len) throws IOException
+                    {
+                        out.write(b, off, len);
+                        bytes.add(len);
+                    }
+
+                    @Override
+                    public void flush() throws IOException
+                    {
+                        out.flush();
+                    }
+
+                    @Override
+                    public void close() throws IOException
+                    {
+                        out.close();
+                    }
+
+                    @Override
+                    public boolean isReady()
+                    {
+                        return out.isReady();
+                    }
+
+                    @Override
+                    public void setWriteListener(final WriteListener listener)
+                    {
+                        out.setWriteListener(listener);
+                    }
+                };
+            }
+            return stream;
+        }
+
+        @Override
+        public PrintWriter getWriter() throws IOException
+        {
+            if (writer == null)
+                writer = new PrintWriter(new OutputStreamWriter(getOutputStream(), getCharacterEncoding()));
+            return writer;
+        }
+
+        @Override
+        public void flushBuffer() throws IOException
+        {
+            if (writer != null)
+                writer.flush();
+            super.flushBuffer();
+        }
+
+        /** Flush text that the servlet wrote but did not flush */
+        void finish()
+        {
+            if (writer != null)
+                writer.flush();
+        }
+    }
+
+    /** @param endpoint Endpoint like "/alarms"
+     *  @return Metrics for that endpoint
+     */
+    public static Endpoint getEndpoint(final String endpoint)
+    {
+        return endpoints.computeIfAbsent(endpoint, e -> new Endpoint());
+    }
+
+    /** @return Metrics by endpoint */
+    public static Map<String, Endpoint> getEndpoints()
+    {
+        return endpoints;
+    }
+
+    @Override
+    public void doFilter(final ServletRequest request, final ServletResponse response, final FilterChain chain)
+            throws IOException, ServletException
+    {
+        final Endpoint endpoint = getEndpoint(((HttpServletRequest) request).getServletPath());
+        final CountingResponse counting = new CountingResponse((HttpServletResponse) response, endpoint.bytes);
+        final long start = System.nanoTime();
+        try
+        {
+            chain.doFilter(request, counting);
+            counting.finish();
+        }
+        finally
+        {
+            // Parked requests that haven't sent anything are measured once resumed
+            if (! request.isAsyncStarted()  ||  counting.isCommitted())
+                endpoint.latency.observe(System.nanoTime() - start);
+        }
+    }
+}
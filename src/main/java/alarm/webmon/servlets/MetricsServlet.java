@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.servlets;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.kafka.common.TopicPartition;
+
+import alarm.webmon.ContextHandler;
+import alarm.webmon.model.AlarmMonitor;
+import alarm.webmon.model.Histogram;
+import alarm.webmon.model.IngestMetrics;
+
+/** Servlet for metrics in the Prometheus text format
+ *
+ *  <p>Message handling metrics are labeled with the alarm configuration,
+ *  HTTP metrics with the endpoint.
+ *
+ *  @author Kay Kasemir
+ */
+@WebServlet("/metrics")
+public class MetricsServlet extends HttpServlet
+{
+    private static final long serialVersionUID = 1L;
+
+    private static final String PREFIX = "alarm_webmon_";
+
+    @Override
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException
+    {
+        final StringBuilder out = new StringBuilder(8192);
+
+        family(out, "records_total", "counter", "Received records by key type");
+        for (AlarmMonitor monitor : ContextHandler.getAlarmMonitors())
+        {
+            final IngestMetrics metrics = monitor.getMetrics();
+            final String config = label("config", monitor.getName());
+            sample(out, "records_total", config + ",type=\"config\"", metrics.config_records.sum());
+            sample(out, "records_total", config + ",type=\"state\"", metrics.state_records.sum());
+            sample(out, "records_total", config + ",type=\"other\"", metrics.other_records.sum());
+        }
+        counter(out, "tombstones_total", "Received 'config:' deletions", m -> m.getMetrics().tombstones.sum());
+        counter(out, "coalesced_total", "Received records replaced by a later one within the same poll", AlarmMonitor::getCoalescedCount);
+        histogram(out, "poll_duration_seconds", "Duration of Kafka consumer poll", m -> m.getMetrics().poll_duration, 1e9);
+        histogram(out, "poll_records", "Records per poll", m -> m.getMetrics().poll_records, 1);
+        histogram(out, "update_duration_seconds", "Duration of handling one 'config:' or 'state:' update", m -> m.getMetrics().update_duration, 1e9);
+
+        family(out, "consumer_lag", "gauge", "Records between consumer position and end of partition");
+        for (AlarmMonitor monitor : ContextHandler.getAlarmMonitors())
+        {
+            final String config = label("config", monitor.getName());
+            for (Map.Entry<TopicPartition, Double> entry : monitor.getMetrics().getLag().entrySet())
+                sample(out, "consumer_lag",
+                       config + "," + label("topic", entry.getKey().topic()) + ",partition=\"" + entry.getKey().partition() + "\"",
+                       entry.getValue().longValue());
+        }
+
+        gauge(out, "pvs", "Configured PVs", AlarmMonitor::getPVCount);
+        gauge(out, "active_alarms", "Active alarms", m -> m.getActiveAlarms().size());
+        gauge(out, "acknowledged_alarms", "Acknowledged alarms", m -> m.getAchnowledgedAlarms().size());
+        gauge(out, "version", "State version of the alarms", AlarmMonitor::getVersion);
+
+        final Map<String, MetricsFilter.Endpoint> endpoints = new TreeMap<>(MetricsFilter.getEndpoints());
+        family(out, "http_request_duration_seconds", "histogram", "Duration of HTTP requests until servlet returns");
+        for (Map.Entry<String, MetricsFilter.Endpoint> entry : endpoints.entrySet())
+            entry.getValue().latency.write(out, PREFIX + "http_request_duration_seconds", label("endpoint", entry.getKey()), 1e9);
+        family(out, "http_response_bytes_total", "counter", "Bytes sent in HTTP responses and events");
+        for (Map.Entry<String, MetricsFilter.Endpoint> entry : endpoints.entrySet())
+            sample(out, "http_response_bytes_total", label("endpoint", entry.getKey()), entry.getValue().bytes.sum());
+
+        final byte[] text = out.toString().getBytes(StandardCharsets.UTF_8);
+        response.setContentType("text/plain; version=0.0.4");
+        response.setCharacterEncoding("UTF-8");
+        response.setContentLength(text.length);
+        response.getOutputStream().write(text);
+    }
+
+    private static void family(final StringBuilder out, final String name, final String type, final String help)
+    {
+        out.append("# HELP ").append(PREFIX).append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(PREFIX).append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void sample(final StringBuilder out, final String name, final String labels, final long value)
+    {
+        out.append(PREFIX).append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+
+    private static void counter(final StringBuilder out, final String name, final String help, final ToLongFunction<AlarmMonitor> value)
+    {
+        perMonitor(out, name, "counter", help, value);
+    }
+
+    private static void gauge(final StringBuilder out, final String name, final String help, final ToLongFunction<AlarmMonitor> value)
+    {
+        perMonitor(out, name, "gauge", help, value);
+    }
+
+    private static void perMonitor(final StringBuilder out, final String name, final String type, final String help,
+                                   final ToLongFunction<AlarmMonitor> value)
+    {
+        family(out, name, type, help);
+        for (AlarmMonitor monitor : ContextHandler.getAlarmMonitors())
+            sample(out, name, label("config", monitor.getName()), value.applyAsLong(monitor));
+    }
+
+    private static void histogram(final StringBuilder out, final String name, final String help,
+                                  final Function<AlarmMonitor, Histogram> histogram, final double divisor)
+    {
+        family(out, name, "histogram", help);
+        for (AlarmMonitor monitor : ContextHandler.getAlarmMonitors())
+            histogram.apply(monitor).write(out, PREFIX + name, label("config", monitor.getName()), divisor);
+    }
+
+    /** @param name Label name
+     *  @param value Label value
+     *  @return <code>name="value"</code> with value escaped
+     */
+    private static String label(final String name, final String value)
+    {
+        return name + "=\"" + value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n") + "\"";
+    }
+}
@@ -0,0 +1,96 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.servlets;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import alarm.webmon.ContextHandler;
+import alarm.webmon.model.AlarmMonitor;
+
+/** Servlet for readiness checks
+ *
+ *  <p><code>/ready</code> checks all configurations,
+ *  <code>/ready/{config}</code> just one.
+ *  Status is 200 when the monitors have read all records
+ *  that existed when they connected, otherwise 503.
+ *
+ *  @author Kay Kasemir
+ */
+@WebServlet("/ready/*")
+public class ReadyServlet extends JSONServlet
+{
+    private static final long serialVersionUID = 1L;
+
+    /** Request attribute for the readiness of each monitor */
+    private static final String READY = ReadyServlet.class.getName() + ".ready";
+
+    @Override
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException
+    {
+        if (getConfig(request) != null  &&  getAlarmMonitor(request) == null)
+        {
+            sendUnknownConfig(request, response);
+            return;
+        }
+        // Read readiness once, so status and body agree
+        // even when a monitor becomes ready meanwhile
+        final Map<AlarmMonitor, Boolean> states = new LinkedHashMap<>();
+        boolean ready = true;
+        for (AlarmMonitor monitor : getMonitors(request))
+        {
+            final boolean monitor_ready = monitor.isReady();
+            states.put(monitor, monitor_ready);
+            ready &= monitor_ready;
+        }
+        request.setAttribute(READY, states);
+        response.setHeader("Cache-Control", "no-cache");
+        if (! ready)
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        super.doGet(request, response);
+    }
+
+    @Override
+    protected void writeJson(final HttpServletRequest request, final JsonGenerator g) throws IOException
+    {
+        @SuppressWarnings("unchecked")
+        final Map<AlarmMonitor, Boolean> states = (Map<AlarmMonitor, Boolean>) request.getAttribute(READY);
+        g.writeStartObject();
+        g.writeBooleanField("ready", ! states.containsValue(false));
+        g.writeObjectFieldStart("configs");
+        for (Map.Entry<AlarmMonitor, Boolean> state : states.entrySet())
+        {
+            g.writeObjectFieldStart(state.getKey().getName());
+            g.writeBooleanField("ready", state.getValue());
+            g.writeNumberField("progress", state.getKey().getProgress());
+            g.writeEndObject();
+        }
+        g.writeEndObject();
+        g.writeEndObject();
+    }
+
+    /** @param request Request with optional "/{config}" path info
+     *  @return Requested monitor or all monitors
+     */
+    private static Collection<AlarmMonitor> getMonitors(final HttpServletRequest request)
+    {
+        if (getConfig(request) == null)
+            return ContextHandler.getAlarmMonitors();
+        return Collections.singletonList(getAlarmMonitor(request));
+    }
+}
@@ -0,0 +1,65 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.servlets;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/** Servlet for rolling alarm statistics
+ *
+ *  <p><code>/stats/{config}?minutes=15&amp;top=10</code>
+ *  returns the alarms raised per minute,
+ *  alarms raised and seconds spent in each severity by area,
+ *  and the PVs raised most often
+ *  over the last minutes, up to one hour.
+ *
+ *  @author Kay Kasemir
+ */
+@WebServlet("/stats/*")
+public class StatsServlet extends JSONServlet
+{
+    private static final long serialVersionUID = 1L;
+
+    /** Default number of minutes */
+    private static final int DEFAULT_MINUTES = 60;
+
+    /** Default number of PVs raised most often */
+    private static final int DEFAULT_TOP = 10;
+
+    @Override
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException
+    {
+        try
+        {
+            getCount(request, "minutes", DEFAULT_MINUTES);
+            getCount(request, "top", DEFAULT_TOP);
+        }
+        catch (IllegalArgumentException ex)
+        {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid query: " + ex.getMessage());
+            return;
+        }
+        response.setHeader("Cache-Control", "no-cache");
+        super.doGet(request, response);
+    }
+
+    @Override
+    protected void writeJson(final HttpServletRequest request, final JsonGenerator g) throws IOException
+    {
+        // doGet checked the parameters
+        getAlarmMonitor(request).serializeStats(getCount(request, "minutes", DEFAULT_MINUTES),
+                                                getCount(request, "top", DEFAULT_TOP),
+                                                g);
+    }
+}
@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.servlets;
+
+import java.io.IOException;
+
+import javax.servlet.ServletException;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+import alarm.webmon.model.AlarmMonitor;
+
+/** Servlet for severity summary of the alarm tree
+ *
+ *  <p><code>/tree/{config}?path=/Accelerator/Linac&amp;depth=2</code>
+ *  returns the worst severity and severity counts of the PVs below that path,
+ *  including child nodes down to the requested depth.
+ *  Path defaults to the root, depth to 1.
+ *
+ *  <p>The summary is captured before responding,
+ *  so a path that's not in the tree results in "404 Not Found".
+ *
+ *  @author Kay Kasemir
+ */
+@WebServlet("/tree/*")
+public class TreeServlet extends JSONServlet
+{
+    private static final long serialVersionUID = 1L;
+
+    /** Request attribute for the captured summary */
+    private static final String SUMMARY = TreeServlet.class.getName() + ".summary";
+
+    @Override
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException
+    {
+        final AlarmMonitor monitor = getAlarmMonitor(request);
+        if (monitor == null)
+        {
+            sendUnknownConfig(request, response);
+            return;
+        }
+        // Tree may change, for example be cleared while catching up,
+        // so capture the summary instead of checking the path ahead of time
+        final TokenBuffer summary = new TokenBuffer(null, false);
+        if (! monitor.getTree().serialize(getPath(request), getDepth(request), summary))
+        {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND, "Unknown path '" + getPath(request) + "'");
+            return;
+        }
+        request.setAttribute(SUMMARY, summary);
+        super.doGet(request, response);
+    }
+
+    @Override
+    protected void writeJson(final HttpServletRequest request, final JsonGenerator g) throws IOException
+    {
+        ((TokenBuffer) request.getAttribute(SUMMARY)).serialize(g);
+    }
+
+    private static String getPath(final HttpServletRequest request)
+    {
+        final String path = request.getParameter("path");
+        return path == null ? "/" : path;
+    }
+
+    private static int getDepth(final HttpServletRequest request)
+    {
+        final String text = request.getParameter("depth");
+        if (text != null)
+        {
+            try
+            {
+                return Integer.parseInt(text.trim());
+            }
+            catch (NumberFormatException ex)
+            {
+                // Use default
+            }
+        }
+        return 1;
+    }
+}
@@ -0,0 +1,316 @@
+// Order of severities, least severe first
+let SeverityRank =
+{
+    "OK": 0,
+    "MINOR_ACK": 1,
+    "MAJOR_ACK": 2,
+    "INVALID_ACK": 3,
+    "UNDEFINED_ACK": 4,
+    "MINOR": 5,
+    "MAJOR": 6,
+    "INVALID": 7,
+    "UNDEFINED": 8
+};
+
+function compareSeverity(a, b)
+{
+    return (SeverityRank[a] || 0) - (SeverityRank[b] || 0);
+}
+
+// Numeric values by value, other text by sort_natural from sorttable.js
+function compareValue(a, b)
+{
+    let x = Number(a), y = Number(b);
+    if (a !== ""  &&  b !== ""  &&  isFinite(x)  &&  isFinite(y))
+        return x - y;
+    return sort_natural(a, b);
+}
+
+// Columns of the table: Icon, PV, Description, Alarm Severity, ... PV Status
+let AlarmColumns =
+[
+    { field: "severity",         compare: compareSeverity },
+    { field: "name",             compare: sort_natural },
+    { field: "description",      compare: sort_natural },
+    { field: "severity",         compare: compareSeverity },
+    { field: "message",          compare: sort_natural },
+    { field: "time",             compare: sort_natural },
+    { field: "value",            compare: compareValue },
+    { field: "current_severity", compare: compareSeverity },
+    { field: "current_message",  compare: sort_natural }
+];
+
+// Tables with more rows only render the rows near the visible part of the page
+let VIRTUAL_ROWS = 500;
+
+// Rows rendered above and below the visible part of the page
+let OVERSCAN_ROWS = 50;
+
+/** Table of alarms
+ *
+ *  Rows are kept by PV path.
+ *  On update, only rows whose data changed are patched,
+ *  and rows are only moved when their order changed,
+ *  so the page keeps its scroll position.
+ *  The table sorts its rows itself when a column header is clicked.
+ *  Long tables only render the rows near the visible part of the page,
+ *  using spacer rows for the height of the remaining rows.
+ */
+class AlarmTable
+{
+    constructor(which, counter)
+    {
+        this.which = which;
+        this.counter = counter;
+        this.body = document.querySelector("#" + which + " tbody");
+        this.headers = Array.from(document.querySelectorAll("#" + which + " thead th"));
+        // Rows by path, each { pv, tr }, tr created when first shown
+        this.rows = new Map();
+        // Rows in the order shown
+        this.order = [];
+        // Sort by column, or keep order of the data?
+        this.sorted = true;
+        this.column = Math.max(0, this.headers.findIndex(th => th.classList.contains("sorttable_sorted")));
+        this.reverse = false;
+        this.top = this.createSpacer();
+        this.bottom = this.createSpacer();
+        this.row_height = 20;
+        this.scheduled = false;
+
+        this.headers.forEach((th, i) => th.addEventListener("click", () => this.sortBy(i)));
+        this.showSortIndicator();
+        window.addEventListener("scroll", () => this.schedule());
+        window.addEventListener("resize", () => this.schedule());
+    }
+
+    createSpacer()
+    {
+        let tr = document.createElement("tr");
+        let td = document.createElement("td");
+        td.colSpan = AlarmColumns.length;
+        td.style.padding = "0";
+        td.style.border = "0";
+        tr.appendChild(td);
+        return tr;
+    }
+
+    // Keep the order of the data, for example a server-side query
+    keepOrder()
+    {
+        this.sorted = false;
+        this.showSortIndicator();
+    }
+
+    sortBy(column)
+    {
+        if (this.sorted  &&  this.column == column)
+            this.reverse = ! this.reverse;
+        else
+        {
+            this.sorted = true;
+            this.column = column;
+            this.reverse = false;
+        }
+        this.showSortIndicator();
+        this.sort();
+        this.render();
+    }
+
+    showSortIndicator()
+    {
+        this.headers.forEach((th, i) =>
+        {
+            th.classList.remove("sorttable_sorted", "sorttable_sorted_reverse");
+            if (this.sorted  &&  i == this.column)
+                th.classList.add(this.reverse ? "sorttable_sorted_reverse" : "sorttable_sorted");
+        });
+    }
+
+    sort()
+    {
+        if (! this.sorted)
+            return;
+        let field = AlarmColumns[this.column].field;
+        let compare = AlarmColumns[this.column].compare;
+        let sign = this.reverse ? -1 : 1;
+        this.order.sort((a, b) =>
+        {
+            let c = compare(a.pv[field], b.pv[field]);
+            if (c == 0)
+                c = sort_natural(a.pv.path, b.pv.path);
+            return sign * c;
+        });
+    }
+
+    // Show alarms, 'more' indicates that a query returned only the first page
+    show(pvs, more)
+    {
+        let changed = pvs.length != this.rows.size;
+        let rows = new Map();
+        let order = [];
+        for (const pv of pvs)
+        {
+            let row = this.rows.get(pv.path);
+            if (row === undefined)
+            {
+                row = { pv: pv, tr: undefined };
+                changed = true;
+            }
+            else if (row.pv !== pv)
+            {
+                if (this.patch(row, pv))
+                    changed = true;
+            }
+            rows.set(pv.path, row);
+            order.push(row);
+        }
+        // Detach rows of removed alarms
+        for (const [path, row] of this.rows)
+            if (! rows.has(path)  &&  row.tr  &&  row.tr.parentNode)
+                row.tr.remove();
+        this.rows = rows;
+
+        this.counter.text(pvs.length > 0 ? "(" + pvs.length + (more ? "+" : "") + ")" : "");
+        if (! changed)
+            return;
+        this.order = order;
+        this.sort();
+        this.render();
+    }
+
+    // Update row with new data, returns true if anything changed
+    patch(row, pv)
+    {
+        let old = row.pv;
+        row.pv = pv;
+        let changed = false;
+        for (let i=0; i<AlarmColumns.length; ++i)
+        {
+            let field = AlarmColumns[i].field;
+            if (old[field] === pv[field])
+                continue;
+            changed = true;
+            if (row.tr)
+                this.fill(row.tr.cells[i], i, pv);
+        }
+        return changed;
+    }
+
+    fill(td, column, pv)
+    {
+        let text = pv[AlarmColumns[column].field];
+        if (column == 0)
+        {
+            let icon = AlarmIcons[text];
+            td.textContent = "";
+            if (icon !== undefined)
+            {
+                let img = document.createElement("img");
+                img.src = icon;
+                td.appendChild(img);
+            }
+            return;
+        }
+        td.textContent = text;
+        if (column == 3  ||  column == 7)
+            td.className = text;
+    }
+
+    createRow(pv)
+    {
+        let tr = document.createElement("tr");
+        for (let i=0; i<AlarmColumns.length; ++i)
+        {
+            let td = document.createElement("td");
+            this.fill(td, i, pv);
+            tr.appendChild(td);
+        }
+        return tr;
+    }
+
+    schedule()
+    {
+        if (this.scheduled  ||  this.order.length <= VIRTUAL_ROWS)
+            return;
+        this.scheduled = true;
+        window.requestAnimationFrame(() =>
+        {
+            this.scheduled = false;
+            this.render();
+        });
+    }
+
+    // Place rows in DOM, only moving those that are not already in place
+    render()
+    {
+        let count = this.order.length;
+        if (count <= 0)
+        {
+            let td = document.createElement("td");
+            td.colSpan = AlarmColumns.length;
+            td.align = "center";
+            td.textContent = "- There are no " + this.which + " alarms -";
+            let tr = document.createElement("tr");
+            tr.appendChild(td);
+            this.body.replaceChildren(tr);
+            return;
+        }
+
+        let first = 0, last = count;
+        let virtual = count > VIRTUAL_ROWS;
+        if (virtual)
+        {
+            // Offset of the visible part of the page from the start of the table body
+            let offset = -this.body.getBoundingClientRect().top;
+            first = Math.floor(Math.max(0, offset) / this.row_height) - OVERSCAN_ROWS;
+            last = Math.ceil((offset + window.innerHeight) / this.row_height) + OVERSCAN_ROWS;
+            first = Math.max(0, Math.min(first, count - 1));
+            last = Math.max(first + 1, Math.min(last, count));
+        }
+
+        let node = this.body.firstChild;
+        let place = tr =>
+        {
+            if (node === tr)
+                node = node.nextSibling;
+            else
+                this.body.insertBefore(tr, node);
+        };
+        if (virtual)
+        {
+            this.top.firstChild.style.height = (first * this.row_height) + "px";
+            place(this.top);
+        }
+        for (let i=first; i<last; ++i)
+        {
+            let row = this.order[i];
+            if (row.tr === undefined)
+                row.tr = this.createRow(row.pv);
+            // Stripe by index, 'tr:nth-child(even)' would count the top spacer
+            row.tr.classList.toggle("stripe", (i & 1) == 1);
+            place(row.tr);
+        }
+        if (virtual)
+        {
+            this.bottom.firstChild.style.height = ((count - last) * this.row_height) + "px";
+            place(this.bottom);
+        }
+        // Remove rows that are no longer in view
+        while (node)
+        {
+            let next = node.nextSibling;
+            node.remove();
+            node = next;
+        }
+
+        if (virtual)
+        {   // Use the average height of the rendered rows for the spacers
+            let height = (this.bottom.offsetTop - this.top.offsetTop - this.top.offsetHeight) / (last - first);
+            if (height > 0  &&  Math.abs(height - this.row_height) > 0.5)
+            {
+                this.row_height = height;
+                this.schedule();
+            }
+        }
+    }
+}
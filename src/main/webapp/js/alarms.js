@@ -15,6 +15,24 @@ class Alarms
 {
     constructor()
     {
+        // Optional alarm configuration from "index.html?config=Name",
+        // default configuration of the server if not specified
+        let params = new URLSearchParams(window.location.search);
+        this.config = params.get("config");
+        this.suffix = this.config ? "/" + encodeURIComponent(this.config) : "";
+        // Optional server-side query like "index.html?limit=50&sort=time",
+        // polled and shown in the order returned by the server
+        this.query = {};
+        for (const param of [ "path", "severity", "text", "sort", "reverse", "offset", "limit" ])
+            if (params.has(param))
+                this.query[param] = params.get(param);
+        this.paged = Object.keys(this.query).length > 0;
+        // Current alarms by path
+        this.active = new Map();
+        this.acknowledged = new Map();
+        // Monitor instance and state version of that data
+        this.instance = undefined;
+        this.version = undefined;
     }
 
     showError(text)
@@ -37,92 +55,162 @@ class Alarms
         return datestring;
     }
     
+    // Fetch alarms, returns the request.
+    // Once we have data, the server holds the request until the alarms change
     update()
     {
         console.log("Updating....");
+
+        let wait = this.version === undefined ? {} : { wait: this.version, instance: this.instance };
+        if (this.paged)
+        {   // Server returns "304 Not Modified" until alarms change
+            return jQuery.ajax({ url: "alarms" + this.suffix, data: Object.assign(wait, this.query), ifModified: true })
+                         .done((data, status) =>
+                               {
+                                   if (status === "notmodified")
+                                       this.showStatus("Last update: " + this.now());
+                                   else
+                                       this.handle(data);
+                               })
+                         .fail(() => this.showError("Failed to fetch update: " + this.now()));
+        }
         
-        jQuery.get("alarms", data =>
-                   {
-                       // console.log(data);
-                       this.showAlarms(data.active, "active", jQuery("#active_count"));
-                       this.showAlarms(data.acknowledged, "acknowledged", jQuery("#acknowledged_count"));
-                       this.showStatus("Last update: " + this.now());
-                   })
-              .fail((xhr, status, error) =>
-                    {
-                       console.log("Error:");
-                       console.log(xhr);
-                       console.log(status);
-                       console.log(error);
-                       this.showError("Failed to fetch update: " + this.now());
-                    });    
+        // Once we have data, only ask for changes
+        let request = {};
+        if (this.version !== undefined)
+            request = Object.assign(wait, { since: this.version });
+
+        return jQuery.get("alarms" + this.suffix, request, data => this.handle(data))
+                     .fail((xhr, status, error) =>
+                           {
+                              console.log("Error:");
+                              console.log(xhr);
+                              console.log(status);
+                              console.log(error);
+                              this.showError("Failed to fetch update: " + this.now());
+                           });
+    }
+
+    // Long-poll: Request the next update as soon as the previous one returns,
+    // retry after a delay on error
+    poll()
+    {
+        this.update().done(() => this.poll())
+                     .fail(() => setTimeout(() => this.poll(), 5*1000));
     }
     
-    showAlarms(data, which, counter)
+    // Subscribe to server-sent events.
+    // Returns false if not supported by browser, need to poll
+    connect()
     {
-        // Remove old data
-        let body = jQuery("#" + which + " tbody");
-        body.html("");
-        
-        // Show new data
-        if (data === undefined  ||   data.length <= 0)
-        {
-            counter.text("");
-            let info = jQuery("<td>").attr("colspan", 9).attr("align", "center").text("- There are no " + which + " alarms -");
-            body.html( jQuery("<tr>").append(info) );  
-        }
-        else
+        if (typeof EventSource === "undefined")
+            return false;
+
+        let events = new EventSource("events" + this.suffix);
+        events.addEventListener("snapshot", e => this.handle(JSON.parse(e.data)));
+        events.addEventListener("delta", e => this.handle(JSON.parse(e.data)));
+        // Browser will re-connect and then receive a new snapshot
+        events.onerror = () => this.showError("Lost connection: " + this.now());
+        return true;
+    }
+
+    handle(data)
+    {
+        // console.log(data);
+        this.merge(data);
+        if (this.active_table === undefined)
         {
-            counter.text("(" + data.length + ")");
-            for (const pv of data)
+            this.active_table = new AlarmTable("active", jQuery("#active_count"));
+            this.acknowledged_table = new AlarmTable("acknowledged", jQuery("#acknowledged_count"));
+            // Keep the order of a server-side query
+            if (this.paged)
             {
-                let row = jQuery("<tr>");
-                let icon = AlarmIcons[pv.severity];
-                
-                if (icon === undefined)
-                    row.append(jQuery("<td>"));
-                else
-                    row.append(jQuery("<td>").append(jQuery("<img>").attr("src", icon)));
-                row.append(jQuery("<td>").text(pv.name));
-                row.append(jQuery("<td>").text(pv.description));
-                row.append(jQuery("<td>").addClass(pv.severity).text(pv.severity));
-                row.append(jQuery("<td>").text(pv.message));
-                row.append(jQuery("<td>").text(pv.time));
-                row.append(jQuery("<td>").text(pv.value));
-    
-                
-                
-                row.append(jQuery("<td>").addClass(pv.current_severity).text(pv.current_severity));
-                row.append(jQuery("<td>").text(pv.current_message));
-                body.append(row);
+                this.active_table.keepOrder();
+                this.acknowledged_table.keepOrder();
             }
         }
+        this.active_table.show(Array.from(this.active.values()), data.active_more);
+        this.acknowledged_table.show(Array.from(this.acknowledged.values()), data.acknowledged_more);
+        if (data.catching_up !== undefined)
+            this.showStatus("Catching up: " + data.catching_up + "%");
+        else
+            this.showStatus("Last update: " + this.now());
+    }
 
-        // Check if rows needs to be sorted
-        let headers = jQuery("#" + which + " thead").find("th");
-        for (let i=0; i<headers.length; ++i)
+    merge(data)
+    {
+        if (! data.delta)
+        {   // Complete list of alarms replaces what we had
+            this.active.clear();
+            this.acknowledged.clear();
+        }
+        for (const path of data.removed || [])
         {
-            let header = jQuery(headers[i]);
-            if (header.hasClass("sorttable_sorted"))
-            {
-                // console.log("Sorted by column " + i);
-                // Unclear how to effectively re-sort.
-                // When a column is already marked as sorted,
-                // sorttable.js will simply reverse the rows.
-                // So mark as not sorted, and then fake a click that'll sort it.
-                header.removeClass("sorttable_sorted");
-                header.click();
-            }
-            else if (header.hasClass("sorttable_sorted_reverse"))
-            {
-                // console.log("Reverse-Sorted by column " + i);
-                header.removeClass("sorttable_sorted_reverse");
-                // Similar to forward-sorted case, but click twice:
-                // First to sort, then to reverse
-                header.click();
-                header.click();                
-            }
+            this.active.delete(path);
+            this.acknowledged.delete(path);
+        }
+        // PV may move between active and acknowledged
+        for (const pv of data.active)
+        {
+            this.acknowledged.delete(pv.path);
+            this.active.set(pv.path, pv);
+        }
+        for (const pv of data.acknowledged)
+        {
+            this.active.delete(pv.path);
+            this.acknowledged.set(pv.path, pv);
         }
+        this.instance = data.instance;
+        this.version = data.version;
+    }
+
+    // Measure render time for synthetic alarms, "index.html?benchmark=10000"
+    benchmark(count)
+    {
+        let severities = [ "MINOR", "MAJOR", "INVALID" ];
+        let pv = (i, round) =>
+        {
+            let severity = severities[(i + round) % severities.length];
+            return {
+                path: "/Benchmark/Area" + (i % 10) + "/System" + (i % 100) + "/pv" + i,
+                name: "pv" + i,
+                description: "Synthetic PV " + i,
+                severity: severity,
+                message: severity + "_ALARM",
+                current_severity: severity,
+                current_message: severity + "_ALARM",
+                value: String(i + round / 10),
+                time: "2020-10-19 12:" + ("0" + (i % 60)).slice(-2) + ":" + ("0" + ((i + round) % 60)).slice(-2) + ".000"
+            };
+        };
+        let measure = (what, data) =>
+        {
+            let start = performance.now();
+            this.handle(data);
+            // Include layout
+            document.body.offsetHeight;
+            let ms = performance.now() - start;
+            console.log(what + ": " + ms.toFixed(1) + " ms");
+            return what + " " + ms.toFixed(0) + " ms";
+        };
+
+        let alarms = [];
+        for (let i=0; i<count; ++i)
+            alarms.push(pv(i, 0));
+        let results = [ measure("Initial " + count, { instance: "benchmark", version: 1, active: alarms, acknowledged: [] }) ];
+
+        // One percent of the alarms change
+        let changes = [];
+        for (let i=0; i<count; i+=100)
+            changes.push(pv(i, 1));
+        results.push(measure("Update " + changes.length, { delta: true, instance: "benchmark", version: 2, active: changes, acknowledged: [] }));
+        results.push(measure("No change", { delta: true, instance: "benchmark", version: 3, active: [], acknowledged: [] }));
+
+        // Same data, new objects
+        results.push(measure("Snapshot " + count, { instance: "benchmark", version: 4,
+                                                     active: Array.from(this.active.values(), pv => Object.assign({}, pv)),
+                                                     acknowledged: [] }));
+        this.showStatus("Benchmark: " + results.join(", "));
     }
 }
 
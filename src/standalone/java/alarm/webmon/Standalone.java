@@ -0,0 +1,178 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon;
+
+import static alarm.webmon.ContextHandler.logger;
+
+import java.io.File;
+import java.net.URL;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.Servlet;
+import javax.servlet.annotation.WebFilter;
+import javax.servlet.annotation.WebServlet;
+
+import org.apache.catalina.Context;
+import org.apache.catalina.WebResourceRoot;
+import org.apache.catalina.WebResourceRoot.ResourceSetType;
+import org.apache.catalina.Wrapper;
+import org.apache.catalina.connector.Connector;
+import org.apache.catalina.servlets.DefaultServlet;
+import org.apache.catalina.startup.Tomcat;
+import org.apache.catalina.webresources.StandardRoot;
+import org.apache.tomcat.util.descriptor.web.FilterDef;
+import org.apache.tomcat.util.descriptor.web.FilterMap;
+
+import alarm.webmon.servlets.AlarmsServlet;
+import alarm.webmon.servlets.DebugServlet;
+import alarm.webmon.servlets.EventsServlet;
+import alarm.webmon.servlets.HistoryServlet;
+import alarm.webmon.servlets.MetricsFilter;
+import alarm.webmon.servlets.MetricsServlet;
+import alarm.webmon.servlets.ReadyServlet;
+import alarm.webmon.servlets.StatsServlet;
+import alarm.webmon.servlets.TreeServlet;
+
+/** Standalone alarm web monitor
+ *
+ *  <p>Serves the servlets and web pages from an embedded Tomcat
+ *  instead of deploying the war file to a complete Tomcat installation.
+ *  Servlets and filter are registered from their annotations
+ *  without scanning the class path, so new ones need to be listed here.
+ *  Requests are handled on virtual threads when supported by the JRE.
+ *
+ *  <p>Configured by the same environment variables as the war file,
+ *  plus <code>ALARM_PORT</code>.
+ *
+ *  @author Kay Kasemir
+ */
+public class Standalone
+{
+    public static final String ALARM_PORT = "ALARM_PORT";
+
+    /** Context path, same as for the war file */
+    private static final String CONTEXT = "/alarm-webmon";
+
+    /** Location of the web pages in the class path */
+    private static final String WEBAPP = "/webapp";
+
+    private static final List<Class<? extends Servlet>> servlets = Arrays.asList(
+        AlarmsServlet.class,
+        DebugServlet.class,
+        EventsServlet.class,
+        HistoryServlet.class,
+        MetricsServlet.class,
+        ReadyServlet.class,
+        StatsServlet.class,
+        TreeServlet.class);
+
+    public static void main(final String[] args) throws Exception
+    {
+        final long start = System.nanoTime();
+
+        final String port_text = System.getenv(ALARM_PORT);
+        final int port = port_text == null ? 8080 : Integer.parseInt(port_text.trim());
+
+        final File base = Files.createTempDirectory("alarm-webmon").toFile();
+        base.deleteOnExit();
+        final Tomcat tomcat = new Tomcat();
+        tomcat.setBaseDir(base.getAbsolutePath());
+        tomcat.setPort(port);
+
+        // Creates the HTTP connector
+        final Connector connector = tomcat.getConnector();
+        final ExecutorService executor = createVirtualThreadExecutor();
+        if (executor != null)
+            connector.getProtocolHandler().setExecutor(executor);
+
+        final Context context = tomcat.addContext(CONTEXT, base.getAbsolutePath());
+        context.addApplicationListener(ContextHandler.class.getName());
+
+        // Web pages from the jar file or class path directory
+        final URL location = Standalone.class.getProtectionDomain().getCodeSource().getLocation();
+        final WebResourceRoot resources = new StandardRoot(context);
+        resources.createWebResourceSet(ResourceSetType.PRE, "/", location, WEBAPP);
+        context.setResources(resources);
+        Tomcat.addDefaultMimeTypeMappings(context);
+        Tomcat.addServlet(context, "default", new DefaultServlet());
+        context.addServletMappingDecoded("/", "default");
+        context.addWelcomeFile("index.html");
+
+        for (Class<? extends Servlet> servlet : servlets)
+            addServlet(context, servlet);
+        addFilter(context, MetricsFilter.class);
+
+        tomcat.start();
+        logger.log(Level.INFO, "Alarm Webmon on port " + port +
+                               (executor != null ? " with virtual threads" : "") +
+                               " started in " + (System.nanoTime() - start) / 1000000 + " ms");
+        tomcat.getServer().await();
+    }
+
+    /** @return Executor that creates a virtual thread per task, <code>null</code> if not supported */
+    private static ExecutorService createVirtualThreadExecutor()
+    {
+        // Built for older JREs, so use Executors.newVirtualThreadPerTaskExecutor() when available
+        try
+        {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException ex)
+        {
+            return null;
+        }
+    }
+
+    /** @param context Context
+     *  @param servlet Servlet class with {@link WebServlet} annotation
+     *  @throws ReflectiveOperationException on error
+     */
+    private static void addServlet(final Context context, final Class<? extends Servlet> servlet) throws ReflectiveOperationException
+    {
+        final WebServlet info = servlet.getAnnotation(WebServlet.class);
+        final String name = servlet.getSimpleName();
+        final Wrapper wrapper = Tomcat.addServlet(context, name, servlet.getDeclaredConstructor().newInstance());
+        wrapper.setAsyncSupported(info.asyncSupported());
+        for (String pattern : info.value())
+            context.addServletMappingDecoded(pattern, name);
+        for (String pattern : info.urlPatterns())
+            context.addServletMappingDecoded(pattern, name);
+    }
+
+    /** @param context Context
+     *  @param filter Filter class with {@link WebFilter} annotation
+     *  @throws ReflectiveOperationException on error
+     */
+    private static void addFilter(final Context context, final Class<? extends Filter> filter) throws ReflectiveOperationException
+    {
+        final WebFilter info = filter.getAnnotation(WebFilter.class);
+        final String name = filter.getSimpleName();
+        final FilterDef def = new FilterDef();
+        def.setFilterName(name);
+        def.setFilter(filter.getDeclaredConstructor().newInstance());
+        def.setAsyncSupported(Boolean.toString(info.asyncSupported()));
+        context.addFilterDef(def);
+
+        final FilterMap map = new FilterMap();
+        map.setFilterName(name);
+        for (String pattern : info.value())
+            map.addURLPattern(pattern);
+        for (String pattern : info.urlPatterns())
+            map.addURLPattern(pattern);
+        for (DispatcherType type : info.dispatcherTypes())
+            map.setDispatcher(type.name());
+        context.addFilterMap(map);
+    }
+}
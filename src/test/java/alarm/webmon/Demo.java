@@ -30,6 +30,7 @@ public class Demo
             handler.setLevel(root.getLevel());
 
         final AlarmMonitor monitor = new AlarmMonitor("localhost:9092", Arrays.asList("Accelerator"));
+        monitor.start();
 
         logger.info("Waiting...");
 
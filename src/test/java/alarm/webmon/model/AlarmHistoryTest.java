@@ -0,0 +1,114 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+import static alarm.webmon.model.TestRecords.config;
+import static alarm.webmon.model.TestRecords.state;
+import static alarm.webmon.model.TestRecords.toJson;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import junit.framework.TestCase;
+
+/** Check {@link AlarmHistory} and the history of an {@link AlarmMonitor}
+ *  @author Kay Kasemir
+ */
+public class AlarmHistoryTest extends TestCase
+{
+    /** @param history History
+     *  @param path Path or prefix
+     *  @param limit Maximum number of entries
+     *  @return JSON with "events" and "more"
+     *  @throws Exception on error
+     */
+    private static JsonNode get(final AlarmHistory history, final AlarmPath path, final int limit) throws Exception
+    {
+        return toJson(g ->
+        {
+            g.writeStartObject();
+            history.serialize(Long.MIN_VALUE, Long.MAX_VALUE, path, limit, g);
+            g.writeEndObject();
+        });
+    }
+
+    /** @param result History JSON
+     *  @param field Field of each event
+     *  @return That field of each event
+     */
+    private static List<String> events(final JsonNode result, final String field)
+    {
+        final List<String> values = new ArrayList<>();
+        for (JsonNode event : result.get("events"))
+            values.add(event.get(field).asText());
+        return values;
+    }
+
+    public void testWrap() throws Exception
+    {
+        // Capacity spans several chunks that are copied while locked
+        final int capacity = 3000;
+        final AlarmHistory history = new AlarmHistory(capacity, true);
+        final AlarmPath area = AlarmPath.of("/History/Area"),
+                        rare = AlarmPath.of("/History/Rare/pv");
+        final int total = 2 * capacity + 500;
+        for (int i=0; i<total; ++i)
+        {
+            final AlarmPath path = i % 1000 == 7 ? rare : area.getChild("pv" + i);
+            history.add(path, SeverityLevel.MAJOR, "Update " + i, SeverityLevel.MAJOR, Instant.ofEpochMilli(i));
+        }
+
+        // Newest first, oldest ones overwritten
+        JsonNode result = get(history, AlarmPath.root(), Integer.MAX_VALUE);
+        List<String> messages = events(result, "message");
+        assertEquals(capacity, messages.size());
+        assertEquals("Update " + (total-1), messages.get(0));
+        assertEquals("Update " + (total-capacity), messages.get(capacity-1));
+        assertFalse(result.has("more"));
+
+        // Rarely matching path, scanning all chunks
+        result = get(history, rare, Integer.MAX_VALUE);
+        assertEquals(Arrays.asList("Update 6007", "Update 5007", "Update 4007"), events(result, "message"));
+
+        result = get(history, rare, 2);
+        assertEquals(Arrays.asList("Update 6007", "Update 5007"), events(result, "message"));
+        assertTrue(result.get("more").asBoolean());
+    }
+
+    public void testEmpty() throws Exception
+    {
+        final AlarmHistory history = new AlarmHistory(10, false);
+        assertEquals(0, get(history, AlarmPath.of("/History/pv"), 10).get("events").size());
+    }
+
+    public void testReplacedUpdates() throws Exception
+    {
+        final AlarmMonitor monitor = new AlarmMonitor("Test");
+        monitor.handleRecords(Arrays.asList(config("/Test/History/pv1", "PV 1"),
+                                            config("/Test/History/pv2", "PV 2")));
+        // Flapping within one poll, coalesced for the PV
+        monitor.handleRecords(Arrays.asList(state("/Test/History/pv1", "MAJOR", "HIHI_ALARM", 1),
+                                            state("/Test/History/pv2", "MINOR", "HIGH_ALARM", 2),
+                                            state("/Test/History/pv1", "OK", "OK", 3),
+                                            state("/Test/History/pv1", "MAJOR", "HIHI_ALARM", 4)));
+        assertEquals(2, monitor.getCoalescedCount());
+
+        // History lists every update
+        JsonNode result = toJson(g -> monitor.serializeHistory(Long.MIN_VALUE, Long.MAX_VALUE, "/Test/History", 100, g));
+        assertEquals(Arrays.asList("/Test/History/pv1", "/Test/History/pv1", "/Test/History/pv2", "/Test/History/pv1"),
+                     events(result, "path"));
+        assertEquals(Arrays.asList("MAJOR", "OK", "MINOR", "MAJOR"), events(result, "severity"));
+
+        result = toJson(g -> monitor.serializeHistory(Long.MIN_VALUE, Long.MAX_VALUE, "/Test/History/pv1", 100, g));
+        assertEquals(Arrays.asList("HIHI_ALARM", "OK", "HIHI_ALARM"), events(result, "message"));
+    }
+}
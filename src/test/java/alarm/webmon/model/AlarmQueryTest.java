@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+import static alarm.webmon.model.TestRecords.config;
+import static alarm.webmon.model.TestRecords.state;
+import static alarm.webmon.model.TestRecords.toJson;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import alarm.webmon.model.AlarmQuery.Sort;
+import junit.framework.TestCase;
+
+/** Check filtering, sorting and paging of {@link AlarmQuery}
+ *  @author Kay Kasemir
+ */
+public class AlarmQueryTest extends TestCase
+{
+    private final AlarmMonitor monitor = new AlarmMonitor("Test");
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        monitor.handleRecords(Arrays.asList(
+            config("/Test/Area1/pv1", "Vacuum Pressure 1"),
+            config("/Test/Area1/pv2", "Water Flow 2"),
+            config("/Test/Area1/pv3", "Vacuum Pressure 3"),
+            config("/Test/Area1/pv4", "Water Flow 4"),
+            config("/Test/Area2/pv5", "Vacuum Pressure 5"),
+            config("/Test/Area2/pv6", "Water Flow 6"),
+            config("/Test/Area2/pv7", "Vacuum Pressure 7"),
+            config("/Test/Area2/pv8", "Water Flow 8"),
+            state("/Test/Area1/pv1", "MAJOR", "HIHI_ALARM", 1),
+            state("/Test/Area1/pv2", "MINOR", "HIGH_ALARM", 2),
+            state("/Test/Area1/pv3", "INVALID", "Disconnected", 3),
+            state("/Test/Area1/pv4", "MAJOR_ACK", "LOLO_ALARM", 4),
+            state("/Test/Area2/pv5", "MINOR", "LOW_ALARM", 5),
+            state("/Test/Area2/pv6", "UNDEFINED", "Disconnected", 6),
+            state("/Test/Area2/pv7", "MAJOR", "LOLO_ALARM", 7),
+            state("/Test/Area2/pv8", "OK", "OK", 8)));
+    }
+
+    /** @param query Query
+     *  @return Result of query
+     *  @throws Exception on error
+     */
+    private JsonNode query(final AlarmQuery query) throws Exception
+    {
+        return toJson(g -> monitor.serialize(query, g));
+    }
+
+    /** @param result Query result
+     *  @param name "active" or "acknowledged"
+     *  @return Names of PVs in result
+     */
+    private static List<String> names(final JsonNode result, final String name)
+    {
+        final List<String> names = new ArrayList<>();
+        for (JsonNode pv : result.get(name))
+            names.add(pv.get("name").asText());
+        return names;
+    }
+
+    /** @param result Query result
+     *  @return Does the result indicate more active alarms?
+     */
+    private static boolean more(final JsonNode result)
+    {
+        return result.path("active_more").asBoolean(false);
+    }
+
+    public void testAll() throws Exception
+    {
+        final JsonNode result = query(new AlarmQuery(null, null, null, Sort.NAME, false, 0, Integer.MAX_VALUE));
+        assertEquals(Arrays.asList("pv1", "pv2", "pv3", "pv5", "pv6", "pv7"), names(result, "active"));
+        assertEquals(Arrays.asList("pv4"), names(result, "acknowledged"));
+        assertFalse(more(result));
+    }
+
+    public void testSeverity() throws Exception
+    {
+        // Most severe first, stops at the first alarm below MAJOR
+        JsonNode result = query(new AlarmQuery(null, SeverityLevel.MAJOR, null, Sort.SEVERITY, false, 0, 100));
+        assertEquals(Arrays.asList("pv6", "pv3", "pv1", "pv7"), names(result, "active"));
+        assertFalse(more(result));
+        // MAJOR_ACK is below MAJOR
+        assertEquals(Arrays.asList(), names(result, "acknowledged"));
+
+        // Same alarms when reversed or sorted otherwise, which can't stop early
+        result = query(new AlarmQuery(null, SeverityLevel.MAJOR, null, Sort.SEVERITY, true, 0, 100));
+        assertEquals(Arrays.asList("pv7", "pv1", "pv3", "pv6"), names(result, "active"));
+        result = query(new AlarmQuery(null, SeverityLevel.MAJOR, null, Sort.NAME, false, 0, 100));
+        assertEquals(Arrays.asList("pv1", "pv3", "pv6", "pv7"), names(result, "active"));
+        result = query(new AlarmQuery(null, SeverityLevel.MAJOR, null, Sort.TIME, false, 0, 100));
+        assertEquals(Arrays.asList("pv7", "pv6", "pv3", "pv1"), names(result, "active"));
+
+        // Page ends right before the first alarm below MAJOR
+        result = query(new AlarmQuery(null, SeverityLevel.MAJOR, null, Sort.SEVERITY, false, 2, 2));
+        assertEquals(Arrays.asList("pv1", "pv7"), names(result, "active"));
+        assertFalse(more(result));
+
+        result = query(new AlarmQuery("/Test/Area2", SeverityLevel.MINOR, null, Sort.SEVERITY, false, 0, 100));
+        assertEquals(Arrays.asList("pv6", "pv7", "pv5"), names(result, "active"));
+    }
+
+    public void testText() throws Exception
+    {
+        // Message, ignoring case
+        JsonNode result = query(new AlarmQuery(null, null, "disconn", Sort.NAME, false, 0, 100));
+        assertEquals(Arrays.asList("pv3", "pv6"), names(result, "active"));
+        assertEquals(Arrays.asList(), names(result, "acknowledged"));
+
+        // Description
+        result = query(new AlarmQuery(null, null, "WATER", Sort.NAME, false, 0, 100));
+        assertEquals(Arrays.asList("pv2", "pv6"), names(result, "active"));
+        assertEquals(Arrays.asList("pv4"), names(result, "acknowledged"));
+
+        // Combined with severity and path
+        result = query(new AlarmQuery(null, SeverityLevel.MAJOR, "Vacuum", Sort.SEVERITY, false, 0, 100));
+        assertEquals(Arrays.asList("pv3", "pv1", "pv7"), names(result, "active"));
+        result = query(new AlarmQuery("/Test/Area1", SeverityLevel.MAJOR, "Vacuum", Sort.SEVERITY, false, 0, 100));
+        assertEquals(Arrays.asList("pv3", "pv1"), names(result, "active"));
+
+        // Longer than any description or message
+        result = query(new AlarmQuery(null, null, "Vacuum Pressure 1 and then some", Sort.NAME, false, 0, 100));
+        assertEquals(Arrays.asList(), names(result, "active"));
+
+        // Empty text matches all
+        result = query(new AlarmQuery(null, null, "", Sort.NAME, false, 0, 100));
+        assertEquals(6, names(result, "active").size());
+    }
+
+    public void testPages() throws Exception
+    {
+        JsonNode result = query(new AlarmQuery(null, null, null, Sort.NAME, false, 0, 3));
+        assertEquals(Arrays.asList("pv1", "pv2", "pv3"), names(result, "active"));
+        assertTrue(more(result));
+
+        // Last page is complete, nothing more
+        result = query(new AlarmQuery(null, null, null, Sort.NAME, false, 3, 3));
+        assertEquals(Arrays.asList("pv5", "pv6", "pv7"), names(result, "active"));
+        assertFalse(more(result));
+
+        result = query(new AlarmQuery(null, null, null, Sort.NAME, false, 2, 2));
+        assertEquals(Arrays.asList("pv3", "pv5"), names(result, "active"));
+        assertTrue(more(result));
+
+        result = query(new AlarmQuery(null, null, null, Sort.NAME, false, 4, 3));
+        assertEquals(Arrays.asList("pv6", "pv7"), names(result, "active"));
+        assertFalse(more(result));
+
+        // Beyond the end
+        result = query(new AlarmQuery(null, null, null, Sort.NAME, false, 6, 3));
+        assertEquals(Arrays.asList(), names(result, "active"));
+        assertFalse(more(result));
+
+        // Empty page, but there are matches
+        result = query(new AlarmQuery(null, null, null, Sort.NAME, false, 0, 0));
+        assertEquals(Arrays.asList(), names(result, "active"));
+        assertTrue(more(result));
+
+        // Unknown path
+        result = query(new AlarmQuery("/Test/Other", null, null, Sort.NAME, false, 0, 0));
+        assertEquals(Arrays.asList(), names(result, "active"));
+        assertFalse(more(result));
+    }
+
+    public void testMovedWhileQueried() throws Exception
+    {
+        final AlarmIndex index = new AlarmIndex();
+        final List<AlarmPV> pvs = new ArrayList<>();
+        for (int i=0; i<3; ++i)
+        {
+            final boolean update_first = i == 1;
+            final AlarmPV pv = new AlarmPV(AlarmPath.of("/Test/Moving/pv" + i))
+            {
+                boolean updated = false;
+
+                // Meeting this PV updates the first PV,
+                // which then moves behind it in the time index
+                @Override
+                public String getDescription()
+                {
+                    if (update_first  &&  ! updated)
+                    {
+                        updated = true;
+                        final AlarmPV first = pvs.get(0);
+                        final Instant time = Instant.ofEpochSecond(10);
+                        final int removed = index.beforeUpdate(first, SeverityLevel.MAJOR, time);
+                        first.setAlarm(SeverityLevel.MAJOR, "HIHI_ALARM", SeverityLevel.MAJOR, "HIHI_ALARM", "", time);
+                        index.afterUpdate(first, removed);
+                    }
+                    return super.getDescription();
+                }
+            };
+            pv.setAlarm(SeverityLevel.MAJOR, "HIHI_ALARM", SeverityLevel.MAJOR, "HIHI_ALARM", "", Instant.ofEpochSecond(i));
+            pvs.add(pv);
+            index.add(pv);
+        }
+
+        // Oldest first meets pv0 again after it moved, but lists it once
+        final AlarmQuery query = new AlarmQuery(null, null, null, Sort.TIME, true, 0, 100);
+        final JsonNode result = toJson(g ->
+        {
+            g.writeStartObject();
+            query.serialize("active", index, g);
+            g.writeEndObject();
+        });
+        assertEquals(Arrays.asList("pv0", "pv1", "pv2"), names(result, "active"));
+        assertFalse(more(result));
+    }
+}
@@ -0,0 +1,103 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+import static alarm.webmon.model.TestRecords.config;
+import static alarm.webmon.model.TestRecords.state;
+import static alarm.webmon.model.TestRecords.toJson;
+
+import java.util.Arrays;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import junit.framework.TestCase;
+
+/** Check {@link AlarmStats}
+ *  @author Kay Kasemir
+ */
+public class AlarmStatsTest extends TestCase
+{
+    /** @param stats Statistics
+     *  @return Statistics as JSON
+     *  @throws Exception on error
+     */
+    private static JsonNode get(final AlarmStats stats) throws Exception
+    {
+        return toJson(g ->
+        {
+            g.writeStartObject();
+            stats.serialize(60, 10, g);
+            g.writeEndObject();
+        });
+    }
+
+    /** @param result Statistics JSON
+     *  @param name Area name
+     *  @return Statistics for that area
+     */
+    private static JsonNode getArea(final JsonNode result, final String name)
+    {
+        for (JsonNode area : result.get("areas"))
+            if (area.get("area").asText().equals(name))
+                return area;
+        fail("No area " + name);
+        return null;
+    }
+
+    public void testOtherArea() throws Exception
+    {
+        // Two PVs in the 'other' area
+        final AlarmStats stats = new AlarmStats();
+        for (int i=0; i<AlarmStats.AREAS + 1; ++i)
+            stats.update(AlarmPath.of("/Stats/Area" + i + "/pv"), null, SeverityLevel.MAJOR, true);
+        // Initial serialization is slower, don't count that as time in MAJOR
+        get(stats);
+        Thread.sleep(1100);
+
+        // More areas that map to 'other' must not reset its time in severity
+        for (int i=AlarmStats.AREAS + 1; i<AlarmStats.AREAS + 5; ++i)
+            stats.update(AlarmPath.of("/Stats/Area" + i + "/pv"), null, SeverityLevel.OK, true);
+
+        final JsonNode result = get(stats);
+        assertEquals(AlarmStats.AREAS, result.get("areas").size());
+        final JsonNode other = getArea(result, "other");
+        assertEquals(2, other.get("raised").get("MAJOR").asInt());
+        assertTrue(other.toString(), other.path("seconds").path("MAJOR").asLong() >= 2);
+        assertTrue(getArea(result, "/Stats/Area0").get("seconds").get("MAJOR").asLong() >= 1);
+    }
+
+    public void testChattering() throws Exception
+    {
+        final AlarmMonitor monitor = new AlarmMonitor("Test");
+        monitor.handleRecords(Arrays.asList(config("/Test/Stats/pv1", "PV 1"),
+                                            config("/Test/Stats/pv2", "PV 2")));
+        // pv1 raises MAJOR three times within one poll, pv2 stays in MINOR
+        monitor.handleRecords(Arrays.asList(state("/Test/Stats/pv1", "MAJOR", "HIHI_ALARM", 1),
+                                            state("/Test/Stats/pv2", "MINOR", "HIGH_ALARM", 1),
+                                            state("/Test/Stats/pv1", "OK", "OK", 2),
+                                            state("/Test/Stats/pv2", "MINOR", "HIGH_ALARM", 2),
+                                            state("/Test/Stats/pv1", "MAJOR", "HIHI_ALARM", 3),
+                                            state("/Test/Stats/pv1", "OK", "OK", 4),
+                                            state("/Test/Stats/pv1", "MAJOR", "HIHI_ALARM", 5)));
+        // Raised again in the next poll, relative to the applied MAJOR no change
+        monitor.handleRecords(Arrays.asList(state("/Test/Stats/pv1", "MAJOR", "HIHI_ALARM", 6),
+                                            state("/Test/Stats/pv1", "OK", "OK", 7),
+                                            state("/Test/Stats/pv1", "MAJOR", "HIHI_ALARM", 8)));
+
+        final JsonNode result = toJson(g -> monitor.serializeStats(60, 10, g));
+        final JsonNode area = getArea(result, "/Test/Stats");
+        assertEquals(4, area.get("raised").get("MAJOR").asInt());
+        assertEquals(1, area.get("raised").get("MINOR").asInt());
+
+        final JsonNode chattering = result.get("chattering");
+        assertEquals("/Test/Stats/pv1", chattering.get(0).get("path").asText());
+        assertEquals(4, chattering.get(0).get("raised").asInt());
+        assertEquals("/Test/Stats/pv2", chattering.get(1).get("path").asText());
+        assertEquals(1, chattering.get(1).get("raised").asInt());
+    }
+}
@@ -0,0 +1,99 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/** Check {@link AlarmTreePath#splitPath(String)} against the original regular expression
+ *  @author Kay Kasemir
+ */
+public class AlarmTreePathTest extends TestCase
+{
+    private static final String[] PATHS =
+    {
+        "",
+        "/",
+        "//",
+        "/Accelerator",
+        "Accelerator",
+        "/Accelerator/",
+        "/Accelerator/Vacuum/PV1",
+        "//Accelerator///Vacuum//PV1//",
+        "/Accelerator/Vacuum\\/Water/PV1",
+        "/Accelerator/Vacuum\\//PV1",
+        "/Accelerator/\\/Vacuum/PV1",
+        "\\/Accelerator/PV1",
+        "/Accelerator/PV1\\/",
+        "/Accelerator/PV1\\",
+        "/Accelerator/\\\\/PV1",
+        "/Accelerator/a\\b/PV1",
+        "/Accelerator/\\//\\//PV1",
+    };
+
+    /** @param path Path
+     *  @return Path elements, split as done before via regular expression
+     */
+    private static String[] splitRegex(final String path)
+    {
+        final List<String> items = new ArrayList<>();
+        for (String item : path.split("(?<!\\\\)/+"))
+        {
+            if (item.isEmpty())
+                continue;
+            items.add(item.replace("\\/", AlarmTreePath.PATH_SEP));
+        }
+        return items.toArray(new String[items.size()]);
+    }
+
+    private static void checkSplit(final String path)
+    {
+        assertEquals("Path '" + path + "'",
+                     Arrays.asList(splitRegex(path)),
+                     Arrays.asList(AlarmTreePath.splitPath(path)));
+    }
+
+    public void testSplit()
+    {
+        for (String path : PATHS)
+            checkSplit(path);
+        assertEquals(Arrays.asList("Accelerator", "Vacuum/Water", "PV1"),
+                     Arrays.asList(AlarmTreePath.splitPath("/Accelerator/Vacuum\\/Water/PV1")));
+        assertEquals(Arrays.asList("Accelerator", "Vacuum", "PV1"),
+                     Arrays.asList(AlarmTreePath.splitPath("//Accelerator///Vacuum//PV1//")));
+    }
+
+    public void testRandomPaths()
+    {
+        final Random random = new Random(42);
+        final char[] alphabet = { 'a', 'b', '/', '/', '\\' };
+        for (int run=0; run<10000; ++run)
+        {
+            final char[] path = new char[random.nextInt(12)];
+            for (int i=0; i<path.length; ++i)
+                path[i] = alphabet[random.nextInt(alphabet.length)];
+            checkSplit(new String(path));
+        }
+    }
+
+    public void testMakePath()
+    {
+        final String[] items = { "Accelerator", "Vacuum/Water", "PV1" };
+        final String path = AlarmTreePath.makePath(items, items.length);
+        assertEquals("/Accelerator/Vacuum\\/Water/PV1", path);
+        assertEquals(Arrays.asList(items), Arrays.asList(AlarmTreePath.splitPath(path)));
+        assertEquals(path, AlarmPath.of(path).toString());
+        // Joined path is kept
+        assertSame(AlarmPath.of(path).toString(), AlarmPath.of(path).toString());
+        assertEquals("/", AlarmPath.root().toString());
+    }
+}
@@ -0,0 +1,136 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.kafka.common.TopicPartition;
+
+import junit.framework.TestCase;
+
+/** Check writing and reading a {@link Checkpoint}
+ *  @author Kay Kasemir
+ */
+public class CheckpointTest extends TestCase
+{
+    private File file;
+
+    @Override
+    protected void setUp() throws Exception
+    {
+        file = File.createTempFile("checkpoint", ".bin");
+    }
+
+    @Override
+    protected void tearDown()
+    {
+        file.delete();
+    }
+
+    /** Write checkpoint file for a few PVs */
+    private void writeCheckpoint() throws Exception
+    {
+        final Map<TopicPartition, Long> offsets = new HashMap<>();
+        offsets.put(new TopicPartition("Accelerator", 0), 42L);
+        offsets.put(new TopicPartition("Accelerator", 1), 4711L);
+
+        final AlarmPV deleted = new AlarmPV(AlarmPath.root());
+        final Map<AlarmPath, AlarmPV> config = new LinkedHashMap<>();
+        final AlarmPV a = new AlarmPV(AlarmPath.of("/Accelerator/Vacuum/a"));
+        a.setDescription("Vacuum \u00b5Torr");
+        a.setAlarm(SeverityLevel.MAJOR, "HIHI_ALARM", SeverityLevel.MINOR, "HIGH_ALARM", "3.14",
+                   Instant.ofEpochSecond(1603123456, 789));
+        config.put(a.getPath(), a);
+        config.put(AlarmPath.of("/Accelerator/Vacuum/gone"), deleted);
+        // Long texts
+        final AlarmPV b = new AlarmPV(AlarmPath.of("/Accelerator/Water/b"));
+        final char[] text = new char[5000];
+        Arrays.fill(text, 'x');
+        b.setDescription(new String(text));
+        b.setAlarm(SeverityLevel.UNDEFINED_ACK, "Disconnected", SeverityLevel.UNDEFINED, "Disconnected", "",
+                   Instant.ofEpochSecond(1603123457, 0));
+        config.put(b.getPath(), b);
+
+        Checkpoint.write(file, offsets, config, deleted);
+    }
+
+    public void testRoundTrip() throws Exception
+    {
+        writeCheckpoint();
+        final Checkpoint checkpoint = Checkpoint.read(file);
+
+        assertTrue(Math.abs(checkpoint.time.toEpochMilli() - System.currentTimeMillis()) < 60000);
+        assertEquals(2, checkpoint.offsets.size());
+        assertEquals(Long.valueOf(42), checkpoint.offsets.get(new TopicPartition("Accelerator", 0)));
+        assertEquals(Long.valueOf(4711), checkpoint.offsets.get(new TopicPartition("Accelerator", 1)));
+
+        assertEquals(Arrays.asList(AlarmPath.of("/Accelerator/Vacuum/gone")), checkpoint.deleted);
+
+        assertEquals(2, checkpoint.pvs.size());
+        final AlarmPV a = checkpoint.pvs.get(0);
+        assertSame(AlarmPath.of("/Accelerator/Vacuum/a"), a.getPath());
+        assertEquals("Vacuum \u00b5Torr", a.getDescription());
+        assertEquals(SeverityLevel.MAJOR, a.getSeverity());
+        assertEquals("HIHI_ALARM", a.getMessage());
+        assertEquals(SeverityLevel.MINOR, a.getCurrentSeverity());
+        assertEquals("HIGH_ALARM", a.getCurrentMessage());
+        assertEquals("3.14", a.getValue());
+        assertEquals(Instant.ofEpochSecond(1603123456, 789), a.getTimestamp());
+
+        final AlarmPV b = checkpoint.pvs.get(1);
+        assertEquals(5000, b.getDescription().length());
+        assertEquals(SeverityLevel.UNDEFINED_ACK, b.getSeverity());
+        assertEquals("", b.getValue());
+    }
+
+    public void testTruncated() throws Exception
+    {
+        writeCheckpoint();
+        final byte[] bytes = Files.readAllBytes(file.toPath());
+        for (int length : new int[] { 0, 4, bytes.length / 2, bytes.length - 1 })
+        {
+            Files.write(file.toPath(), Arrays.copyOf(bytes, length));
+            try
+            {
+                Checkpoint.read(file);
+                fail("Read checkpoint truncated to " + length + " bytes");
+            }
+            catch (Exception ex)
+            {
+                // Expected
+            }
+        }
+    }
+
+    public void testCorrupted() throws Exception
+    {
+        writeCheckpoint();
+        final byte[] bytes = Files.readAllBytes(file.toPath());
+        for (int i=0; i<bytes.length; i+=7)
+        {
+            final byte[] corrupted = bytes.clone();
+            corrupted[i] ^= 0x10;
+            Files.write(file.toPath(), corrupted);
+            try
+            {
+                Checkpoint.read(file);
+                fail("Read checkpoint with byte " + i + " flipped");
+            }
+            catch (Exception ex)
+            {
+                assertTrue(ex.getMessage(), ex.getMessage().contains("checksum"));
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+import static alarm.webmon.model.TestRecords.config;
+import static alarm.webmon.model.TestRecords.state;
+import static alarm.webmon.model.TestRecords.toJson;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+import junit.framework.TestCase;
+
+/** Check {@link RemovalLog} and the changes sent for <code>/alarms?since=..</code>
+ *  @author Kay Kasemir
+ */
+public class RemovalLogTest extends TestCase
+{
+    private static final AlarmPath A = AlarmPath.of("/Test/a"),
+                                   B = AlarmPath.of("/Test/b"),
+                                   C = AlarmPath.of("/Test/c"),
+                                   D = AlarmPath.of("/Test/d");
+
+    private static List<AlarmPath> getRemovals(final RemovalLog log, final long since)
+    {
+        final List<AlarmPath> result = new ArrayList<>();
+        return log.getRemovals(since, result) ? result : null;
+    }
+
+    public void testRemovals()
+    {
+        final RemovalLog log = new RemovalLog(3);
+        assertEquals(Arrays.asList(), getRemovals(log, 0));
+        log.add(1, A);
+        log.add(2, B);
+        log.add(3, C);
+        assertEquals(Arrays.asList(A, B, C), getRemovals(log, 0));
+        assertEquals(Arrays.asList(B, C), getRemovals(log, 1));
+        assertEquals(Arrays.asList(), getRemovals(log, 3));
+    }
+
+    public void testWrap()
+    {
+        final RemovalLog log = new RemovalLog(3);
+        log.add(1, A);
+        log.add(2, B);
+        log.add(3, C);
+        // Overwrites the removal in version 1
+        log.add(4, D);
+        assertNull(getRemovals(log, 0));
+        assertEquals(Arrays.asList(B, C, D), getRemovals(log, 1));
+        assertEquals(Arrays.asList(D), getRemovals(log, 3));
+
+        // Wrap several times
+        for (int version=5; version<=10; ++version)
+            log.add(version, version % 2 == 0 ? A : B);
+        assertNull(getRemovals(log, 6));
+        assertEquals(Arrays.asList(A, B, A), getRemovals(log, 7));
+    }
+
+    public void testSameVersion()
+    {
+        final RemovalLog log = new RemovalLog(2);
+        log.add(5, A);
+        log.add(5, B);
+        log.add(6, C);
+        // Client with version 5 has both removals of that version
+        assertEquals(Arrays.asList(C), getRemovals(log, 5));
+        // Client with version 4 lost the removal of A
+        assertNull(getRemovals(log, 4));
+    }
+
+    public void testChanges() throws Exception
+    {
+        final AlarmMonitor monitor = new AlarmMonitor("Test");
+        monitor.handleRecords(Arrays.asList(config("/Test/a", "A"),
+                                            config("/Test/b", "B"),
+                                            state("/Test/a", "MAJOR", "HIHI", 1),
+                                            state("/Test/b", "MINOR", "HIGH", 1)));
+        final long version = monitor.getVersion();
+
+        monitor.handleRecords(Arrays.asList(state("/Test/a", "OK", "OK", 2),
+                                            state("/Test/b", "MAJOR", "HIHI", 2)));
+        final JsonNode delta = toJson(g -> assertTrue(monitor.serializeChanges(version, g)));
+        assertTrue(delta.get("delta").asBoolean());
+        assertEquals(monitor.getVersion(), delta.get("version").asLong());
+        assertEquals(1, delta.get("active").size());
+        assertEquals("/Test/b", delta.get("active").get(0).get("path").asText());
+        assertEquals("MAJOR", delta.get("active").get(0).get("severity").asText());
+        assertEquals(1, delta.get("removed").size());
+        assertEquals("/Test/a", delta.get("removed").get(0).asText());
+
+        // Nothing changed since current version
+        final JsonNode none = toJson(g -> assertTrue(monitor.serializeChanges(monitor.getVersion(), g)));
+        assertEquals(0, none.get("active").size());
+        assertEquals(0, none.get("removed").size());
+
+        // Version from the future, for example of a restarted monitor: Needs full resend
+        toJson(g ->
+        {
+            assertFalse(monitor.serializeChanges(monitor.getVersion() + 1, g));
+            g.writeStartObject();
+            g.writeEndObject();
+        });
+    }
+
+    public void testLostChanges() throws Exception
+    {
+        final AlarmMonitor monitor = new AlarmMonitor("Test");
+        monitor.handleRecords(Arrays.asList(config("/Test/a", "A")));
+        final long version = monitor.getVersion();
+        // More removals than the monitor keeps
+        for (int i=0; i<=AlarmMonitor.REMOVAL_LOG_SIZE; ++i)
+        {
+            // Separate polls, else the updates are coalesced
+            monitor.handleRecords(Arrays.asList(state("/Test/a", "MAJOR", "HIHI", 2*i)));
+            monitor.handleRecords(Arrays.asList(state("/Test/a", "OK", "OK", 2*i+1)));
+        }
+        toJson(g ->
+        {
+            assertFalse(monitor.serializeChanges(version, g));
+            g.writeStartObject();
+            g.writeEndObject();
+        });
+    }
+}
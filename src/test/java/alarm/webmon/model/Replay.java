@@ -0,0 +1,266 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.MockConsumer;
+import org.apache.kafka.clients.consumer.OffsetResetStrategy;
+import org.apache.kafka.common.TopicPartition;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/** Replay captured records
+ *
+ *  <p>Feeds a file written with <code>ALARM_CAPTURE</code>
+ *  into an {@link AlarmMonitor} through a {@link MockConsumer},
+ *  either as fast as possible or in real time,
+ *  and reports the records per second.
+ *
+ *  <p>Optionally defers the alarm updates until caught up,
+ *  see {@link AlarmMonitor#setFastCatchup(boolean)}.
+ *
+ *  <p>The end state is compared with a reference monitor
+ *  that handled the same records one by one.
+ *  Time stamps are not compared, because the local time is used
+ *  for states without time stamp.
+ *
+ *  <pre>
+ *  mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=alarm.webmon.model.Replay -Dexec.args="Accelerator.capture"
+ *  </pre>
+ *
+ *  @author Kay Kasemir
+ */
+public class Replay
+{
+    /** Records per poll, Kafka's default for 'max.poll.records' */
+    private static final int POLL_SIZE = 500;
+
+    /** Mock consumer that remembers the rebalance listener,
+     *  because the {@link MockConsumer} doesn't call it
+     */
+    private static class ReplayConsumer extends MockConsumer<byte[], byte[]>
+    {
+        private volatile ConsumerRebalanceListener listener;
+
+        ReplayConsumer()
+        {
+            super(OffsetResetStrategy.EARLIEST);
+        }
+
+        @Override
+        public synchronized void subscribe(final Collection<String> topics, final ConsumerRebalanceListener listener)
+        {
+            this.listener = listener;
+            super.subscribe(topics, listener);
+        }
+    }
+
+    /** Feeds records to the consumer, called by the monitor's message handler on each poll */
+    private static class Feeder implements Runnable
+    {
+        private final ReplayConsumer consumer;
+        private final List<ConsumerRecord<byte[], byte[]>> records;
+        private final double speed;
+        private final Map<TopicPartition, Long> offsets = new HashMap<>();
+        private int next = 0;
+        private long start_nanos, start_stamp;
+
+        /** @param consumer Consumer
+         *  @param records Records to feed
+         *  @param speed Real time factor, 0 for maximum speed
+         */
+        Feeder(final ReplayConsumer consumer, final List<ConsumerRecord<byte[], byte[]>> records, final double speed)
+        {
+            this.consumer = consumer;
+            this.records = records;
+            this.speed = speed;
+            for (ConsumerRecord<byte[], byte[]> record : records)
+                offsets.put(new TopicPartition(record.topic(), record.partition()), 0L);
+        }
+
+        @Override
+        public void run()
+        {
+            if (next == 0)
+            {   // First poll: Assign all partitions, start at offset 0,
+                // with all records up to the end offsets
+                consumer.rebalance(offsets.keySet());
+                consumer.updateBeginningOffsets(new HashMap<>(offsets));
+                final Map<TopicPartition, Long> end = new HashMap<>(offsets);
+                for (ConsumerRecord<byte[], byte[]> record : records)
+                    end.merge(new TopicPartition(record.topic(), record.partition()), 1L, Long::sum);
+                consumer.updateEndOffsets(end);
+                consumer.listener.onPartitionsAssigned(offsets.keySet());
+                start_nanos = System.nanoTime();
+                start_stamp = records.isEmpty() ? 0 : records.get(0).timestamp();
+            }
+            if (speed > 0)
+                waitForNextRecord();
+            for (int i=0; i<POLL_SIZE  &&  next < records.size()  &&  isDue(records.get(next)); ++i)
+            {
+                // Renumber offsets, because a capture may contain repeated offsets
+                // when the monitor re-read the topic
+                final ConsumerRecord<byte[], byte[]> record = records.get(next++);
+                final TopicPartition part = new TopicPartition(record.topic(), record.partition());
+                final long offset = offsets.get(part);
+                offsets.put(part, offset + 1);
+                consumer.addRecord(new ConsumerRecord<>(record.topic(), record.partition(), offset, record.key(), record.value()));
+            }
+            consumer.schedulePollTask(this);
+        }
+
+        /** Wait up to the poll period until next record is due */
+        private void waitForNextRecord()
+        {
+            if (next >= records.size())
+                return;
+            final long wait = TimeUnit.MILLISECONDS.toNanos((long) ((records.get(next).timestamp() - start_stamp) / speed))
+                            - (System.nanoTime() - start_nanos);
+            if (wait > 0)
+            {
+                try
+                {
+                    TimeUnit.NANOSECONDS.sleep(Math.min(wait, TimeUnit.MILLISECONDS.toNanos(100)));
+                }
+                catch (InterruptedException ex)
+                {
+                    // Ignore
+                }
+            }
+        }
+
+        private boolean isDue(final ConsumerRecord<byte[], byte[]> record)
+        {
+            if (speed <= 0)
+                return true;
+            return TimeUnit.MILLISECONDS.toNanos((long) ((record.timestamp() - start_stamp) / speed))
+                   <= System.nanoTime() - start_nanos;
+        }
+    }
+
+    /** @param monitor {@link AlarmMonitor}
+     *  @return Description of alarms and alarm tree for comparison
+     *  @throws Exception on error
+     */
+    private static List<String> describe(final AlarmMonitor monitor) throws Exception
+    {
+        final List<String> result = new ArrayList<>();
+        for (AlarmPV pv : monitor.getActiveAlarms())
+            result.add("active " + describe(pv));
+        for (AlarmPV pv : monitor.getAchnowledgedAlarms())
+            result.add("acknowledged " + describe(pv));
+        Collections.sort(result);
+
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try
+        (
+            final JsonGenerator g = AlarmMonitor.json_factory.createGenerator(buf);
+        )
+        {
+            monitor.getTree().serialize(AlarmTreePath.PATH_SEP, Integer.MAX_VALUE, g);
+        }
+        result.add(new String(buf.toByteArray(), StandardCharsets.UTF_8));
+        return result;
+    }
+
+    private static String describe(final AlarmPV pv)
+    {
+        return pv.getPath() + " '" + pv.getDescription() + "' " +
+               pv.getSeverity() + " " + pv.getMessage() + " " +
+               pv.getCurrentSeverity() + " " + pv.getCurrentMessage() + " " + pv.getValue();
+    }
+
+    public static void main(final String[] args) throws Exception
+    {
+        if (args.length < 1)
+        {
+            System.out.println("USAGE: Replay file.capture [speed [fast]]");
+            System.out.println();
+            System.out.println("speed: Real time factor, 1 for original timing, 0 (default) for maximum speed");
+            System.out.println("fast: Defer alarm updates until caught up");
+            return;
+        }
+        final File file = new File(args[0]);
+        final double speed = args.length > 1 ? Double.parseDouble(args[1]) : 0;
+        final boolean fast = args.length > 2  &&  args[2].equals("fast");
+
+        final List<ConsumerRecord<byte[], byte[]>> records = new ArrayList<>();
+        final Set<String> topics = new LinkedHashSet<>();
+        try
+        (
+            final RecordCapture.Reader reader = new RecordCapture.Reader(file);
+        )
+        {
+            ConsumerRecord<byte[], byte[]> record;
+            while ((record = reader.next()) != null)
+            {
+                records.add(record);
+                topics.add(record.topic());
+            }
+        }
+        System.out.println(file + ": " + records.size() + " records for " + topics);
+
+        // Reference: Handle records one by one
+        final AlarmMonitor reference = new AlarmMonitor(String.join(",", topics));
+        long start = System.nanoTime();
+        for (ConsumerRecord<byte[], byte[]> record : records)
+            reference.handleRecords(Collections.singletonList(record));
+        report("One by one", records.size(), System.nanoTime() - start);
+
+        // Replay through consumer
+        final ReplayConsumer consumer = new ReplayConsumer();
+        consumer.schedulePollTask(new Feeder(consumer, records, speed));
+        start = System.nanoTime();
+        final AlarmMonitor monitor = new AlarmMonitor(consumer, new ArrayList<>(topics), null, null);
+        monitor.setFastCatchup(fast);
+        monitor.start();
+        while (! monitor.isReady())
+            TimeUnit.MILLISECONDS.sleep(1);
+        report("Replay", records.size(), System.nanoTime() - start);
+        System.out.println("Coalesced: " + monitor.getCoalescedCount());
+        monitor.close();
+
+        final List<String> expected = describe(reference);
+        final List<String> actual = describe(monitor);
+        System.out.println("Active: " + monitor.getActiveAlarms().size() +
+                           ", acknowledged: " + monitor.getAchnowledgedAlarms().size());
+        if (expected.equals(actual))
+            System.out.println("End state matches");
+        else
+        {
+            System.out.println("End state differs");
+            for (String line : expected)
+                if (! actual.contains(line))
+                    System.out.println("- " + line);
+            for (String line : actual)
+                if (! expected.contains(line))
+                    System.out.println("+ " + line);
+            System.exit(1);
+        }
+    }
+
+    private static void report(final String label, final int records, final long nanos)
+    {
+        final double seconds = nanos / 1e9;
+        System.out.format("%s: %.3f seconds, %.0f records/sec\n", label, seconds, records / seconds);
+    }
+}
@@ -0,0 +1,100 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/** Check that {@link StringPool} shares instances
+ *  @author Kay Kasemir
+ */
+public class StringPoolTest extends TestCase
+{
+    /** @param text Text
+     *  @return Pooled text, looked up from the middle of a larger buffer
+     */
+    private static String internChars(final String text)
+    {
+        final String buffer = "{\"message\":\"" + text + "\"}";
+        return StringPool.intern(buffer.toCharArray(), 12, text.length());
+    }
+
+    public void testSameInstance()
+    {
+        final String text = StringPool.intern(new String("HIHI_ALARM"));
+        assertEquals("HIHI_ALARM", text);
+        assertSame(text, StringPool.intern(new String("HIHI_ALARM")));
+        assertSame(text, internChars("HIHI_ALARM"));
+
+        // Text first seen via chars is then found via String
+        final String chars = internChars("Disconnected from IOC");
+        assertEquals("Disconnected from IOC", chars);
+        assertSame(chars, StringPool.intern(new String("Disconnected from IOC")));
+        assertSame(chars, internChars("Disconnected from IOC"));
+
+        // Empty text, but not null
+        assertSame(StringPool.intern(""), internChars(""));
+        assertNull(StringPool.intern(null));
+    }
+
+    public void testLongText()
+    {
+        final StringBuilder buf = new StringBuilder();
+        while (buf.length() < StringPool.MAX_LENGTH)
+            buf.append('x');
+        final String max = buf.toString();
+        final String longer = max + "y";
+
+        // Up to the maximum length, texts are pooled
+        assertSame(StringPool.intern(new String(max)), StringPool.intern(new String(max)));
+        assertSame(StringPool.intern(new String(max)), internChars(max));
+
+        // Longer texts are returned as they are
+        final String text = new String(longer);
+        assertSame(text, StringPool.intern(text));
+        assertNotSame(StringPool.intern(new String(longer)), StringPool.intern(new String(longer)));
+        final String chars = internChars(longer);
+        assertEquals(longer, chars);
+        assertNotSame(chars, internChars(longer));
+    }
+
+    public void testCollisions()
+    {
+        // Find three texts that map to the same pair of slots
+        final int set = StringPool.getSet("Collision".hashCode());
+        final List<String> texts = new ArrayList<>();
+        for (int i=0; texts.size() < 3; ++i)
+        {
+            final String text = "Collision " + i;
+            if (StringPool.getSet(text.hashCode()) == set)
+                texts.add(text);
+        }
+        final String a = StringPool.intern(new String(texts.get(0)));
+        final String b = StringPool.intern(new String(texts.get(1)));
+
+        // Both fit into the pair of slots
+        assertSame(a, StringPool.intern(new String(texts.get(0))));
+        assertSame(b, internChars(texts.get(1)));
+        // Using 'a' made it the more recently used one,
+        // so the third text evicts 'b'
+        assertSame(a, internChars(texts.get(0)));
+        final String c = StringPool.intern(new String(texts.get(2)));
+        assertSame(c, internChars(texts.get(2)));
+        assertSame(a, StringPool.intern(new String(texts.get(0))));
+
+        // 'b' is created anew, evicting 'c'
+        final String b2 = internChars(texts.get(1));
+        assertEquals(b, b2);
+        assertNotSame(b, b2);
+        assertSame(b2, StringPool.intern(new String(texts.get(1))));
+        assertSame(a, StringPool.intern(new String(texts.get(0))));
+        assertNotSame(c, StringPool.intern(new String(texts.get(2))));
+    }
+}
@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+import static alarm.webmon.model.AlarmMonitor.mapper;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+
+/** Records and helpers for tests
+ *  @author Kay Kasemir
+ */
+class TestRecords
+{
+    /** @param key Key
+     *  @param value Value, <code>null</code> for deletion
+     *  @return Record
+     */
+    static ConsumerRecord<byte[], byte[]> record(final String key, final String value)
+    {
+        return new ConsumerRecord<>("Accelerator", 0, 0,
+                                    key.getBytes(StandardCharsets.UTF_8),
+                                    value == null ? null : value.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** @param path PV path
+     *  @param description Description
+     *  @return 'config:' record for a PV
+     */
+    static ConsumerRecord<byte[], byte[]> config(final String path, final String description)
+    {
+        return record(AlarmMonitor.CONFIG_PREFIX + path, "{\"description\":\"" + description + "\"}");
+    }
+
+    /** @param path Path
+     *  @return 'config:' deletion
+     */
+    static ConsumerRecord<byte[], byte[]> tombstone(final String path)
+    {
+        return record(AlarmMonitor.CONFIG_PREFIX + path, null);
+    }
+
+    /** @param path PV path
+     *  @param severity Alarm severity
+     *  @param message Alarm message
+     *  @param seconds Time stamp, epoch seconds
+     *  @return 'state:' record for a PV
+     */
+    static ConsumerRecord<byte[], byte[]> state(final String path, final String severity, final String message,
+                                                final long seconds)
+    {
+        return record(AlarmMonitor.STATE_PREFIX + path,
+                      "{\"severity\":\"" + severity + "\",\"message\":\"" + message + "\",\"value\":\"1\"," +
+                      "\"time\":{\"seconds\":" + seconds + ",\"nano\":0}," +
+                      "\"current_severity\":\"" + severity.replace("_ACK", "") + "\",\"current_message\":\"" + message + "\"}");
+    }
+
+    /** @param writer Code that writes JSON
+     *  @return Written JSON
+     *  @throws Exception on error
+     */
+    static JsonNode toJson(final JsonWriter writer) throws Exception
+    {
+        final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+        try
+        (
+            final JsonGenerator g = AlarmMonitor.json_factory.createGenerator(buf);
+        )
+        {
+            writer.write(g);
+        }
+        return mapper.readTree(buf.toByteArray());
+    }
+
+    /** Code that writes JSON */
+    @FunctionalInterface
+    interface JsonWriter
+    {
+        void write(JsonGenerator g) throws Exception;
+    }
+}
@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+import static alarm.webmon.model.TestRecords.config;
+import static alarm.webmon.model.TestRecords.record;
+import static alarm.webmon.model.TestRecords.state;
+import static alarm.webmon.model.TestRecords.tombstone;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+
+import junit.framework.TestCase;
+
+/** Check which updates {@link UpdateBatch} keeps
+ *  @author Kay Kasemir
+ */
+public class UpdateBatchTest extends TestCase
+{
+    private static final String PV1 = "/Accelerator/Vacuum/PV1",
+                                PV2 = "/Accelerator/Vacuum/PV2";
+
+    private final UpdateBatch batch = new UpdateBatch();
+
+    /** @param records Records of one poll
+     *  @return Updates to apply, as "config:path=value" etc.
+     */
+    @SafeVarargs
+    private final List<String> apply(final ConsumerRecord<byte[], byte[]>... records)
+    {
+        batch.clear();
+        for (ConsumerRecord<byte[], byte[]> record : records)
+            batch.add(record.key(), record.value());
+        final List<String> result = new ArrayList<>();
+        for (UpdateBatch.Update update : batch.getUpdates())
+            if (update != null  &&  ! update.replaced)
+                result.add(toString(update));
+        return result;
+    }
+
+    /** @return Updates of last batch that were replaced, as "state:path=value" */
+    private List<String> replaced()
+    {
+        final List<String> result = new ArrayList<>();
+        for (UpdateBatch.Update update : batch.getUpdates())
+            if (update != null  &&  update.replaced)
+                result.add(toString(update));
+        return result;
+    }
+
+    /** @param record Record
+     *  @return Update for record, as "config:path=value" etc.
+     */
+    private static String toString(final ConsumerRecord<byte[], byte[]> record)
+    {
+        return new String(record.key(), StandardCharsets.UTF_8) + "=" +
+               (record.value() == null ? null : new String(record.value(), StandardCharsets.UTF_8));
+    }
+
+    /** @param update Update
+     *  @return Update as "config:path=value" etc.
+     */
+    private static String toString(final UpdateBatch.Update update)
+    {
+        return (update.is_config ? AlarmMonitor.CONFIG_PREFIX : AlarmMonitor.STATE_PREFIX) + update.path + "=" +
+               (update.value == null ? null : new String(update.value, StandardCharsets.UTF_8));
+    }
+
+    @SafeVarargs
+    private static List<String> expect(final ConsumerRecord<byte[], byte[]>... records)
+    {
+        final List<String> result = new ArrayList<>();
+        for (ConsumerRecord<byte[], byte[]> record : records)
+            result.add(toString(record));
+        return result;
+    }
+
+    public void testStateReplacesState()
+    {
+        final ConsumerRecord<byte[], byte[]> major = state(PV1, "MAJOR", "HIHI_ALARM", 1),
+                                             minor = state(PV1, "MINOR", "HIGH_ALARM", 2),
+                                             ok = state(PV1, "OK", "OK", 3),
+                                             other = state(PV2, "MAJOR", "LOLO_ALARM", 2);
+        assertEquals(expect(other, ok), apply(major, minor, other, ok));
+        assertEquals(2, batch.getCoalesced());
+        // Replaced updates remain for the history
+        assertEquals(expect(major, minor), replaced());
+
+        // Only one update, nothing to coalesce
+        assertEquals(expect(major), apply(major));
+        assertEquals(0, batch.getCoalesced());
+    }
+
+    public void testConfigKeepsOrder()
+    {
+        final ConsumerRecord<byte[], byte[]> major = state(PV1, "MAJOR", "HIHI_ALARM", 1),
+                                             disable = record(AlarmMonitor.CONFIG_PREFIX + PV1, "{\"description\":\"PV1\",\"enabled\":false}"),
+                                             enable = config(PV1, "PV1"),
+                                             minor = state(PV1, "MINOR", "HIGH_ALARM", 2),
+                                             ok = state(PV1, "OK", "OK", 3);
+        // State before a config must be applied before the config,
+        // later states still replace each other
+        assertEquals(expect(major, disable, enable, ok), apply(major, disable, enable, minor, ok));
+        assertEquals(1, batch.getCoalesced());
+
+        // Configs are never coalesced
+        assertEquals(expect(disable, enable, disable), apply(disable, enable, disable));
+        assertEquals(0, batch.getCoalesced());
+    }
+
+    public void testTombstoneReplacesEverything()
+    {
+        final ConsumerRecord<byte[], byte[]> create = config(PV1, "PV1"),
+                                             major = state(PV1, "MAJOR", "HIHI_ALARM", 1),
+                                             other = state(PV2, "MINOR", "HIGH_ALARM", 1),
+                                             delete = tombstone(PV1),
+                                             ok = state(PV1, "OK", "OK", 2),
+                                             recreate = config(PV1, "PV1 again");
+        assertEquals(expect(other, delete), apply(create, major, other, delete));
+        assertEquals(2, batch.getCoalesced());
+        assertEquals(Arrays.asList(), replaced());
+
+        // Updates after the deletion remain, in order
+        assertEquals(expect(other, delete, ok, recreate), apply(create, major, other, delete, ok, recreate));
+        assertEquals(2, batch.getCoalesced());
+
+        // Second deletion replaces the first one and everything in between
+        assertEquals(expect(delete), apply(create, delete, ok, recreate, delete));
+        assertEquals(4, batch.getCoalesced());
+
+        // State replaced by a later state, then deleted, is only counted once
+        assertEquals(expect(delete), apply(major, ok, delete));
+        assertEquals(2, batch.getCoalesced());
+        assertEquals(Arrays.asList(), replaced());
+    }
+
+    public void testIgnoredRecords()
+    {
+        final ConsumerRecord<byte[], byte[]> command = record("command:" + PV1, "{\"command\":\"acknowledge\"}"),
+                                             delete_state = record(AlarmMonitor.STATE_PREFIX + PV1, null),
+                                             ok = state(PV1, "OK", "OK", 1);
+        assertEquals(expect(ok), apply(command, delete_state, ok));
+        assertEquals(0, batch.getCoalesced());
+
+        final IngestMetrics metrics = new IngestMetrics();
+        batch.addCounts(metrics);
+        assertEquals(2, metrics.state_records.sum());
+        assertEquals(1, metrics.other_records.sum());
+        assertEquals(0, metrics.config_records.sum());
+
+        assertEquals(Arrays.asList(), apply());
+    }
+}
@@ -0,0 +1,162 @@
+/*******************************************************************************
+ * Copyright (c) 2020 Oak Ridge National Laboratory.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ ******************************************************************************/
+package alarm.webmon.model;
+
+import static alarm.webmon.model.AlarmMonitor.mapper;
+
+import java.nio.charset.StandardCharsets;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+
+import junit.framework.TestCase;
+
+/** Check that {@link UpdateDecoder} matches decoding via {@link JsonNode} tree
+ *  @author Kay Kasemir
+ */
+public class UpdateDecoderTest extends TestCase
+{
+    /** Recorded 'config:' messages, plus unusual variants */
+    private static final String[] CONFIGS =
+    {
+        "{\"user\":\"ops\",\"host\":\"ics-srv01\",\"description\":\"DTL Tank 1 Water Flow\",\"delay\":10,\"guidance\":[{\"title\":\"Call\",\"details\":\"Call the water group at 1234\"}],\"displays\":[{\"title\":\"Water\",\"details\":\"/opi/water/Tank1.bob\"}],\"commands\":[{\"title\":\"Restart\",\"details\":\"restart_ioc.sh\"}]}",
+        "{\"user\":\"ops\",\"host\":\"ics-srv01\",\"description\":\"Beam Loss\",\"enabled\":false,\"latching\":true,\"annunciating\":true}",
+        "{\"user\":\"ops\",\"host\":\"ics-srv01\",\"enabled\":true,\"description\":\"Vacuum\",\"actions\":[{\"title\":\"Mail\",\"details\":\"mailto:ops@site.org\",\"delay\":\"0\"}]}",
+        "{\"user\":\"ops\",\"host\":\"ics-srv01\",\"guidance\":[{\"title\":\"Area\",\"details\":\"Not a PV, no description\"}]}",
+        "{\"description\":null}",
+        "{\"description\":42,\"enabled\":\"false\"}",
+        "{\"description\":3.50,\"enabled\":\" true \"}",
+        "{\"description\":{\"nested\":[1,2,{\"x\":\"y\"}]},\"enabled\":0}",
+        "{\"description\":[\"a\"],\"enabled\":1}",
+        "{\"description\":true,\"enabled\":null}",
+        "{\"description\":\"first\",\"description\":\"second\",\"enabled\":false,\"enabled\":true}",
+        "{\"description\":\"Unicode \\u00b5A \\\"quoted\\\"\",\"enabled\":{}}",
+        "{}",
+        "[]",
+        "null",
+        "\"text\"",
+        "",
+        "   ",
+    };
+
+    /** Recorded 'state:' messages, plus unusual variants */
+    private static final String[] STATES =
+    {
+        "{\"severity\":\"MAJOR\",\"message\":\"HIHI_ALARM\",\"value\":\"10.5\",\"time\":{\"seconds\":1603123456,\"nano\":123456789},\"current_severity\":\"MAJOR\",\"current_message\":\"HIHI_ALARM\",\"mode\":\"normal\"}",
+        "{\"severity\":\"MINOR_ACK\",\"latch\":true,\"message\":\"LOW_ALARM\",\"value\":\"-3\",\"time\":{\"seconds\":1603123456,\"nano\":0},\"current_severity\":\"OK\",\"current_message\":\"NO_ALARM\"}",
+        "{\"severity\":\"OK\",\"message\":\"OK\",\"value\":\"0\",\"time\":{\"seconds\":1603123456,\"nano\":5},\"current_severity\":\"OK\",\"current_message\":\"OK\"}",
+        "{\"severity\":\"UNDEFINED\",\"message\":\"Disconnected\",\"value\":\"\",\"current_severity\":\"UNDEFINED\",\"current_message\":\"Disconnected\"}",
+        "{\"severity\":\"MAJOR\"}",
+        "{\"severity\":\"MAJOR\",\"mode\":\"maintenance\",\"time\":{\"seconds\":1603123456,\"nano\":1}}",
+        "{\"current_severity\":\"MAJOR\",\"severity\":\"INVALID\"}",
+        "{\"severity\":\"MINOR\",\"current_severity\":\"MINOR\",\"value\":12.75,\"message\":7,\"current_message\":null}",
+        "{\"severity\":\"MINOR\",\"current_severity\":\"MINOR\",\"value\":[1,2],\"message\":{\"a\":1}}",
+        "{\"severity\":\"MINOR\",\"current_severity\":\"MINOR\",\"time\":null}",
+        "{\"severity\":\"MINOR\",\"current_severity\":\"MINOR\",\"time\":1603123456}",
+        "{\"severity\":\"MINOR\",\"current_severity\":\"MINOR\",\"time\":{\"seconds\":\"1603123456\",\"nano\":\"77\"}}",
+        "{\"severity\":\"MINOR\",\"current_severity\":\"MINOR\",\"time\":{\"seconds\":1603123456.9,\"nano\":true,\"extra\":{\"x\":[]}}}",
+        "{\"severity\":\"MINOR\",\"current_severity\":\"MINOR\",\"time\":{\"seconds\":1},\"time\":{\"nano\":2}}",
+        "{\"severity\":\"MINOR\",\"severity\":\"MAJOR\",\"current_severity\":\"MINOR\",\"value\":99999999999999999999}",
+        "{\"nested\":{\"severity\":\"MAJOR\"},\"current_severity\":\"OK\"}",
+        "{}",
+        "[{\"severity\":\"MAJOR\"}]",
+        "null",
+        "",
+    };
+
+    private static JsonNode parse(final String text) throws Exception
+    {
+        try
+        (
+            final JsonParser jp = mapper.getFactory().createParser(text);
+        )
+        {
+            return mapper.readTree(jp);
+        }
+    }
+
+    public void testConfig() throws Exception
+    {
+        final UpdateDecoder decoder = new UpdateDecoder();
+        for (String text : CONFIGS)
+        {
+            final JsonNode json = parse(text);
+            final boolean has_value = decoder.decodeConfig(text.getBytes(StandardCharsets.UTF_8));
+            assertEquals(text, json != null, has_value);
+            if (json == null)
+                continue;
+
+            JsonNode jn = json.get("description");
+            assertEquals(text, jn == null ? null : jn.asText(), decoder.description);
+
+            jn = json.get("enabled");
+            assertEquals(text, jn == null ? true : jn.asBoolean(), decoder.enabled);
+        }
+    }
+
+    public void testState() throws Exception
+    {
+        final UpdateDecoder decoder = new UpdateDecoder();
+        for (String text : STATES)
+        {
+            final JsonNode json = parse(text);
+            decoder.decodeState(text.getBytes(StandardCharsets.UTF_8));
+
+            assertEquals(text, get(json, "severity"), decoder.severity);
+            assertEquals(text, get(json, "current_severity"), decoder.current_severity);
+            assertEquals(text, get(json, "message"), decoder.message);
+            assertEquals(text, get(json, "current_message"), decoder.current_message);
+            assertEquals(text, get(json, "value"), decoder.value);
+
+            final JsonNode time = json == null ? null : json.get("time");
+            assertEquals(text, time != null, decoder.has_time);
+            if (time != null)
+            {
+                JsonNode sub = time.get("seconds");
+                assertEquals(text, sub == null ? 0 : sub.asLong(), decoder.seconds);
+                sub = time.get("nano");
+                assertEquals(text, sub == null ? 0 : sub.asInt(), decoder.nano);
+            }
+        }
+    }
+
+    public void testPooling() throws Exception
+    {
+        final UpdateDecoder decoder = new UpdateDecoder();
+        decoder.decodeState(STATES[0].getBytes(StandardCharsets.UTF_8));
+        final String severity = decoder.severity, message = decoder.message;
+        assertEquals("HIHI_ALARM", message);
+
+        // Another PV with the same texts shares the instances
+        decoder.decodeState(("{\"severity\":\"MAJOR\",\"message\":\"HIHI_ALARM\",\"value\":\"11\"," +
+                             "\"current_severity\":\"MAJOR\",\"current_message\":\"HIHI_ALARM\"}").getBytes(StandardCharsets.UTF_8));
+        assertSame(severity, decoder.severity);
+        assertSame(severity, decoder.current_severity);
+        assertSame(message, decoder.message);
+        assertSame(message, decoder.current_message);
+        assertSame(message, StringPool.intern(new String("HIHI_ALARM")));
+
+        // Texts that are not plain JSON strings are pooled as well
+        decoder.decodeState("{\"severity\":\"MINOR\",\"current_severity\":\"MINOR\",\"value\":12.75}".getBytes(StandardCharsets.UTF_8));
+        final String value = decoder.value;
+        assertEquals("12.75", value);
+        decoder.decodeState("{\"severity\":\"MINOR\",\"current_severity\":\"MINOR\",\"value\":\"12.75\"}".getBytes(StandardCharsets.UTF_8));
+        assertSame(value, decoder.value);
+
+        decoder.decodeConfig(CONFIGS[0].getBytes(StandardCharsets.UTF_8));
+        final String description = decoder.description;
+        decoder.decodeConfig(CONFIGS[0].getBytes(StandardCharsets.UTF_8));
+        assertSame(description, decoder.description);
+    }
+
+    private static String get(final JsonNode json, final String field)
+    {
+        final JsonNode jn = json == null ? null : json.get(field);
+        return jn == null ? null : jn.asText();
+    }
+}